@@ -0,0 +1,126 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.Configuration;
+import co.elastic.logstash.api.Event;
+import org.logstash.plugins.ConfigurationImpl;
+import org.logstash.plugins.ContextImpl;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Events, pipeline definitions and filters shared by the benchmarks.
+ */
+final class BenchmarkSupport {
+
+    static final int BATCH_SIZE = 125;
+
+    private BenchmarkSupport() {
+    }
+
+    static ElasticsearchIngestNode createFilter(String definitions, String primaryPipeline,
+                                                Map<String, Object> settings) {
+        Map<String, Object> allSettings = new HashMap<>(settings);
+        allSettings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), primaryPipeline);
+        Configuration config = new ConfigurationImpl(allSettings);
+        return new ElasticsearchIngestNode("benchmark", config, new ContextImpl(null, null),
+                new ByteArrayInputStream(definitions.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Returns an event of the requested shape:
+     * <ul>
+     * <li>{@code small}: a handful of top-level fields</li>
+     * <li>{@code wide}: 150 top-level fields</li>
+     * <li>{@code nested}: a few top-level fields, each holding maps nested five levels deep</li>
+     * </ul>
+     */
+    static org.logstash.Event createEvent(String shape) {
+        org.logstash.Event e = new org.logstash.Event();
+        e.setField("message", "55.3.244.1 GET /index.html 15824 0.043");
+        e.setField("timestamp", "2019-04-02T12:34:56.789Z");
+        e.setField("count", 21);
+        e.setField("hostname", "WEB-01.EXAMPLE.COM");
+        switch (shape) {
+            case "small":
+                break;
+            case "wide":
+                for (int k = 0; k < 150; k++) {
+                    e.setField("field_" + k, k % 2 == 0 ? "value_" + k : k);
+                }
+                break;
+            case "nested":
+                for (int k = 0; k < 5; k++) {
+                    e.setField("nested_" + k, nestedMap(5));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown event shape " + shape);
+        }
+        return e;
+    }
+
+    static List<Event> createBatch(String shape) {
+        List<Event> batch = new ArrayList<>(BATCH_SIZE);
+        for (int k = 0; k < BATCH_SIZE; k++) {
+            batch.add(createEvent(shape));
+        }
+        return batch;
+    }
+
+    /**
+     * Returns pipeline definitions with a primary pipeline named {@code main} for the requested processor mix.
+     */
+    static String pipelineDefinitions(String processorMix) {
+        switch (processorMix) {
+            case "set_rename":
+                return pipeline("main",
+                        processor("set", "\"field\": \"my_field\", \"value\": \"my_value\""),
+                        processor("rename", "\"field\": \"hostname\", \"target_field\": \"host\""),
+                        processor("lowercase", "\"field\": \"host\""));
+            case "grok":
+                return pipeline("main", processor("grok", "\"field\": \"message\", \"patterns\": " +
+                        "[\"%{IP:client} %{WORD:method} %{URIPATHPARAM:request} %{NUMBER:bytes} %{NUMBER:duration}\"]"));
+            case "date":
+                return pipeline("main", processor("date", "\"field\": \"timestamp\", \"formats\": [\"ISO8601\"]"));
+            case "script":
+                return pipeline("main", processor("script", "\"source\": \"ctx.total = ctx.count * 2\""));
+            case "pipeline":
+                return "{" + pipelineBody("main",
+                        processor("pipeline", "\"name\": \"first\""),
+                        processor("pipeline", "\"name\": \"second\"")) + "," +
+                        pipelineBody("first", processor("set", "\"field\": \"first\", \"value\": 1"),
+                                processor("pipeline", "\"name\": \"third\"")) + "," +
+                        pipelineBody("second", processor("set", "\"field\": \"second\", \"value\": 2")) + "," +
+                        pipelineBody("third", processor("set", "\"field\": \"third\", \"value\": 3")) + "}";
+            default:
+                throw new IllegalArgumentException("Unknown processor mix " + processorMix);
+        }
+    }
+
+    static String pipeline(String name, String... processors) {
+        return "{" + pipelineBody(name, processors) + "}";
+    }
+
+    static String pipelineBody(String name, String... processors) {
+        return "\"" + name + "\": { \"processors\": [" + String.join(",", processors) + "] }";
+    }
+
+    static String processor(String type, String parameters) {
+        return "{ \"" + type + "\": {" + parameters + "} }";
+    }
+
+    private static Map<String, Object> nestedMap(int depth) {
+        Map<String, Object> m = new HashMap<>();
+        m.put("string", "value");
+        m.put("number", depth);
+        if (depth > 1) {
+            m.put("child", nestedMap(depth - 1));
+        }
+        return m;
+    }
+}
@@ -0,0 +1,78 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.Event;
+import co.elastic.logstash.api.FilterMatchListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures event throughput of the filter for batches of events run through representative processor mixes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(BenchmarkSupport.BATCH_SIZE)
+public class FilterBenchmark {
+
+    private static final FilterMatchListener NO_OP_LISTENER = e -> { };
+
+    @Param({"set_rename", "grok", "date", "script", "pipeline"})
+    public String processors;
+
+    @Param({"small", "wide"})
+    public String shape;
+
+    @Param({"false", "true"})
+    public boolean inPlace;
+
+    @Param({"1", "4"})
+    public long parallelism;
+
+    private ElasticsearchIngestNode filter;
+    private List<Event> batch;
+
+    @Setup(Level.Trial)
+    public void setupFilter() {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.IN_PLACE.name(), inPlace);
+        settings.put(ElasticsearchIngestNode.PARALLELISM.name(), parallelism);
+        filter = BenchmarkSupport.createFilter(BenchmarkSupport.pipelineDefinitions(processors), "main", settings);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupBatch() {
+        // in-place runs modify their input, so each invocation gets a fresh batch
+        batch = BenchmarkSupport.createBatch(shape);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        filter.close();
+    }
+
+    @Benchmark
+    public Collection<Event> filter() {
+        return filter.filter(batch, NO_OP_LISTENER);
+    }
+}
@@ -0,0 +1,71 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.Event;
+import org.elasticsearch.ingest.IngestDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of converting events to the lazy ingest documents that the filter runs pipelines against and of
+ * writing them back, both in place and over a copy of the event as without {@code in_place}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestMarshallerBenchmark {
+
+    @Param({"small", "wide", "nested"})
+    public String shape;
+
+    private org.logstash.Event event;
+
+    @Setup
+    public void setup() {
+        event = BenchmarkSupport.createEvent(shape);
+    }
+
+    @Benchmark
+    public Event lazyRoundtrip() {
+        return IngestMarshaller.writeBack(IngestMarshaller.toLazyDocument(event));
+    }
+
+    @Benchmark
+    public Event copyRoundtrip() {
+        return IngestMarshaller.writeBack(IngestMarshaller.toLazyDocument(event.clone()));
+    }
+
+    /**
+     * A roundtrip in which a processor reads the ingest timestamp, which is otherwise never converted. Comparing the
+     * normalized allocation rate with {@link #copyRoundtrip()} gives the cost of materializing the ingest metadata.
+     */
+    @Benchmark
+    public Event copyRoundtripReadingTimestamp() {
+        IngestDocument doc = IngestMarshaller.toLazyDocument(event.clone());
+        doc.getIngestMetadata().get(IngestMarshaller.INGEST_TIMESTAMP);
+        return IngestMarshaller.writeBack(doc);
+    }
+
+    /**
+     * A roundtrip in which a processor changes a top-level field, which is then the only field written back.
+     */
+    @Benchmark
+    public Event copyRoundtripSettingField() {
+        IngestDocument doc = IngestMarshaller.toLazyDocument(event.clone());
+        doc.setFieldValue("benchmark_field", "value");
+        return IngestMarshaller.writeBack(doc);
+    }
+}
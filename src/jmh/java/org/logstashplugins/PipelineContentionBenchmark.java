@@ -0,0 +1,69 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.Event;
+import co.elastic.logstash.api.FilterMatchListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs pipelines that chain through several nested pipeline processors from 16 Logstash workers sharing one filter,
+ * which exposes any contention in resolving the called pipelines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+@OperationsPerInvocation(BenchmarkSupport.BATCH_SIZE)
+public class PipelineContentionBenchmark {
+
+    private static final FilterMatchListener NO_OP_LISTENER = e -> { };
+
+    private ElasticsearchIngestNode filter;
+
+    @Setup
+    public void setup() {
+        filter = BenchmarkSupport.createFilter(BenchmarkSupport.pipelineDefinitions("pipeline"), "main",
+                Collections.emptyMap());
+    }
+
+    @TearDown
+    public void tearDown() {
+        filter.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Batch {
+
+        List<Event> events;
+
+        @Setup(Level.Invocation)
+        public void setup() {
+            events = BenchmarkSupport.createBatch("small");
+        }
+    }
+
+    @Benchmark
+    public Collection<Event> filter(Batch batch) {
+        return filter.filter(batch.events, NO_OP_LISTENER);
+    }
+}
@@ -0,0 +1,74 @@
+package org.logstashplugins;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time and allocation needed to create a filter from a definitions file with many grok and painless
+ * pipelines. The primary pipeline calls all others so that every pipeline is built when the filter is created, and
+ * the JVM-wide script cache is cleared before each iteration so that every iteration compiles its scripts. The GC
+ * profiler's {@code gc.alloc.rate.norm} reports the bytes allocated per filter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBenchmark {
+
+    @Param({"1", "40"})
+    public int pipelineCount;
+
+    private String definitions;
+
+    @Setup
+    public void setup() {
+        List<String> pipelines = new ArrayList<>();
+        for (int k = 0; k < pipelineCount; k++) {
+            List<String> processors = new ArrayList<>();
+            processors.add(BenchmarkSupport.processor("grok", "\"field\": \"message\", \"patterns\": " +
+                    "[\"%{IP:client} %{WORD:method} %{URIPATHPARAM:request} %{NUMBER:bytes_" + k + "}\"]"));
+            processors.add(BenchmarkSupport.processor("script",
+                    "\"source\": \"ctx.total_" + k + " = ctx.count * 2\""));
+            processors.add(BenchmarkSupport.processor("set",
+                    "\"field\": \"flag_" + k + "\", \"value\": true, \"if\": \"ctx.count > " + k + "\""));
+            if (k == 0) {
+                // pipelines are built when first referenced, so the primary pipeline references all others
+                for (int callee = 1; callee < pipelineCount; callee++) {
+                    processors.add(BenchmarkSupport.processor("pipeline", "\"name\": \"pipeline_" + callee + "\""));
+                }
+            }
+            pipelines.add(BenchmarkSupport.pipelineBody("pipeline_" + k, processors.toArray(new String[0])));
+        }
+        definitions = "{" + String.join(",", pipelines) + "}";
+    }
+
+    @Setup(Level.Iteration)
+    public void clearScriptCache() {
+        CachingScriptService.invalidateAll();
+    }
+
+    @Benchmark
+    public ElasticsearchIngestNode createFilter() {
+        ElasticsearchIngestNode filter =
+                BenchmarkSupport.createFilter(definitions, "pipeline_0", Collections.emptyMap());
+        filter.close();
+        return filter;
+    }
+}
@@ -0,0 +1,146 @@
+package org.logstashplugins;
+
+import org.elasticsearch.ingest.CompoundProcessor;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Pipeline;
+import org.elasticsearch.ingest.Processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs a pipeline against all documents of a batch one processor at a time rather than one document at a time, so
+ * that {@link BatchProcessor}s can process the whole batch at once. All other processors run against each document
+ * in turn as they do in the pipeline. Documents that are dropped or fail skip the remaining processors, and metrics
+ * are recorded and failures reported as they are when the pipeline runs as an ingest pipeline.
+ */
+class BatchPipeline {
+
+    private final List<Step> steps;
+    private final IngestMetrics.PipelineMetrics metrics;
+
+    private BatchPipeline(List<Step> steps, IngestMetrics.PipelineMetrics metrics) {
+        this.steps = steps;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns a batch pipeline equivalent to the supplied pipeline or null if it has no batch processors or has
+     * failure handling of its own. Batch processors may have conditions only if they can be evaluated without a
+     * script.
+     */
+    static BatchPipeline of(Pipeline pipeline, IngestMetrics.PipelineMetrics metrics) {
+        CompoundProcessor compound = pipeline.getCompoundProcessor();
+        if (compound.isIgnoreFailure() || !compound.getOnFailureProcessors().isEmpty()) {
+            return null;
+        }
+        List<Step> steps = new ArrayList<>();
+        boolean batched = false;
+        for (Processor processor : compound.getProcessors()) {
+            Step step = Step.of(processor);
+            batched |= step.batchProcessor != null;
+            steps.add(step);
+        }
+        return batched ? new BatchPipeline(Collections.unmodifiableList(steps), metrics) : null;
+    }
+
+    /**
+     * Runs the pipeline against each of the supplied documents, replacing each document with the resulting one or
+     * with null if it was dropped. The failure of a document is stored at the same index of the supplied failures.
+     */
+    void execute(IngestDocument[] documents, Exception[] failures) {
+        long start = System.nanoTime();
+        metrics.in.add(documents.length);
+        for (Step step : steps) {
+            step.execute(documents, failures);
+        }
+        for (int k = 0; k < documents.length; k++) {
+            if (failures[k] != null) {
+                metrics.failed.increment();
+            } else if (documents[k] == null) {
+                metrics.dropped.increment();
+            } else {
+                metrics.out.increment();
+            }
+        }
+        metrics.nanos.add(System.nanoTime() - start);
+    }
+
+    private static final class Step {
+
+        private final Processor processor;
+        private final BatchProcessor batchProcessor;
+        private final ProcessorCondition condition;
+        private final IngestMetrics.ProcessorMetrics metrics;
+
+        private Step(Processor processor, BatchProcessor batchProcessor, ProcessorCondition condition,
+                     IngestMetrics.ProcessorMetrics metrics) {
+            this.processor = processor;
+            this.batchProcessor = batchProcessor;
+            this.condition = condition;
+            this.metrics = metrics;
+        }
+
+        static Step of(Processor processor) {
+            Processor unwrapped = processor;
+            ProcessorCondition condition = null;
+            if (unwrapped instanceof NativeConditionalProcessor) {
+                condition = ((NativeConditionalProcessor)unwrapped).getCondition();
+                unwrapped = ((NativeConditionalProcessor)unwrapped).getProcessor();
+            }
+            if ((condition == null || !condition.needsScript()) && unwrapped instanceof InstrumentedProcessor
+                    && ((InstrumentedProcessor)unwrapped).getDelegate() instanceof BatchProcessor) {
+                InstrumentedProcessor instrumented = (InstrumentedProcessor)unwrapped;
+                return new Step(processor, (BatchProcessor)instrumented.getDelegate(), condition,
+                        instrumented.getMetrics());
+            }
+            return new Step(processor, null, null, null);
+        }
+
+        void execute(IngestDocument[] documents, Exception[] failures) {
+            if (batchProcessor == null) {
+                for (int k = 0; k < documents.length; k++) {
+                    if (documents[k] != null && failures[k] == null) {
+                        try {
+                            documents[k] = processor.execute(documents[k]);
+                        } catch (Exception e) {
+                            failures[k] = EventPipeline.failure(processor, e);
+                        }
+                    }
+                }
+                return;
+            }
+
+            int[] selected = new int[documents.length];
+            int count = 0;
+            for (int k = 0; k < documents.length; k++) {
+                // conditions that need no script never evaluate to UNKNOWN
+                if (documents[k] != null && failures[k] == null && (condition == null
+                        || condition.evaluate(documents[k].getSourceAndMetadata()) == ProcessorCondition.Result.TRUE)) {
+                    selected[count++] = k;
+                }
+            }
+            if (count == 0) {
+                return;
+            }
+
+            IngestDocument[] batchDocuments = new IngestDocument[count];
+            Exception[] batchFailures = new Exception[count];
+            for (int k = 0; k < count; k++) {
+                batchDocuments[k] = documents[selected[k]];
+            }
+            long start = System.nanoTime();
+            batchProcessor.executeBatch(batchDocuments, batchFailures);
+            // the time taken by the batch is attributed evenly to its documents
+            long elapsed = (System.nanoTime() - start) / count;
+            for (int k = 0; k < count; k++) {
+                metrics.record(elapsed, batchFailures[k]);
+                documents[selected[k]] = batchDocuments[k];
+                if (batchFailures[k] != null) {
+                    failures[selected[k]] = EventPipeline.failure(batchProcessor, batchFailures[k]);
+                }
+            }
+        }
+    }
+}
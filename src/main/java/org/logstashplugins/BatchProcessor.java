@@ -0,0 +1,19 @@
+package org.logstashplugins;
+
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+
+/**
+ * A processor that can run against all documents of a batch at once so that work such as parsing a value that recurs
+ * within the batch is done once rather than for each document. {@link BatchPipeline} runs batch processors through
+ * {@link #executeBatch(IngestDocument[], Exception[])} and all other processors one document at a time.
+ */
+public interface BatchProcessor extends Processor {
+
+    /**
+     * Runs the processor against each of the supplied documents, replacing each document with the resulting one or
+     * with null if it was dropped. The failure of a document is stored at the same index of the supplied failures and
+     * does not affect the other documents.
+     */
+    void executeBatch(IngestDocument[] documents, Exception[] failures);
+}
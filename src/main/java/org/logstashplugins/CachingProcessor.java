@@ -0,0 +1,132 @@
+package org.logstashplugins;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the results of a lookup processor such as {@code geoip} or {@code user_agent} that reads a string from its
+ * {@code field} and writes a map derived only from that string and its settings to its {@code target_field}. Values
+ * that recur within the traffic are looked up only once, and processors whose result-determining settings are equal
+ * share cached results regardless of their fields. Only values given as single strings are cached.
+ */
+public class CachingProcessor implements Processor {
+
+    private final Processor delegate;
+    private final Cache<List<Object>, Map<String, Object>> cache;
+    private final CacheCounters counters;
+    private final String field;
+    private final String targetField;
+    private final List<Object> settings;
+
+    private CachingProcessor(Processor delegate, Cache<List<Object>, Map<String, Object>> cache,
+                             CacheCounters counters, String field, String targetField, List<Object> settings) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.counters = counters;
+        this.field = field;
+        this.targetField = targetField;
+        this.settings = settings;
+    }
+
+    @Override
+    public IngestDocument execute(IngestDocument ingestDocument) throws Exception {
+        Object value = ingestDocument.getFieldValue(field, Object.class, true);
+        if (!(value instanceof String)) {
+            return delegate.execute(ingestDocument);
+        }
+
+        List<Object> key = new ArrayList<>(settings.size() + 1);
+        key.addAll(settings);
+        key.add(value);
+        Map<String, Object> cached = cache.getIfPresent(key);
+        if (cached != null) {
+            counters.hits.increment();
+            // values for which the lookup finds nothing leave the document unchanged
+            if (!cached.isEmpty()) {
+                ingestDocument.setFieldValue(targetField, DeepCopy.of(cached));
+            }
+            return ingestDocument;
+        }
+
+        counters.misses.increment();
+        // a result can only be told apart from an existing value of the target field if there is none
+        boolean cacheable = !ingestDocument.hasField(targetField);
+        IngestDocument result = delegate.execute(ingestDocument);
+        if (cacheable) {
+            Object data = result.getFieldValue(targetField, Object.class, true);
+            if (data == null) {
+                cache.put(key, Collections.emptyMap());
+            } else if (data instanceof Map) {
+                cache.put(key, DeepCopy.of(data));
+            }
+        }
+        return result;
+    }
+
+    public Processor getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String getType() {
+        return delegate.getType();
+    }
+
+    @Override
+    public String getTag() {
+        return delegate.getTag();
+    }
+
+    /**
+     * The hits and misses of a cache.
+     */
+    static final class CacheCounters {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+    }
+
+    public static final class Factory implements Processor.Factory {
+
+        private final Processor.Factory delegate;
+        private final Cache<List<Object>, Map<String, Object>> cache;
+        private final CacheCounters counters;
+        private final String defaultTargetField;
+        private final String[] keySettings;
+
+        /**
+         * Creates a factory for processors that share a cache of the supplied size. The results of the wrapped
+         * processors must be determined by their input value and the supplied settings alone.
+         */
+        Factory(Processor.Factory delegate, long cacheSize, CacheCounters counters, String defaultTargetField,
+                String... keySettings) {
+            this.delegate = delegate;
+            this.cache = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+            this.counters = counters;
+            this.defaultTargetField = defaultTargetField;
+            this.keySettings = keySettings;
+        }
+
+        @Override
+        public Processor create(Map<String, Processor.Factory> registry, String processorTag,
+                                Map<String, Object> config) throws Exception {
+            // the wrapped factory validates the configuration and consumes it, so it is read from a copy
+            Map<String, Object> copy = new HashMap<>(config);
+            Processor processor = delegate.create(registry, processorTag, config);
+            List<Object> settings = new ArrayList<>(keySettings.length);
+            for (String setting : keySettings) {
+                settings.add(copy.get(setting));
+            }
+            return new CachingProcessor(processor, cache, counters, (String)copy.get("field"),
+                    (String)copy.getOrDefault("target_field", defaultTargetField), settings);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.logstashplugins;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptContext;
+import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.script.ScriptType;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Script service that keeps compiled inline scripts in a bounded LRU cache shared by every script service in the JVM,
+ * so that a condition or script that appears in many pipelines or filters is compiled only once per process.
+ *
+ * Compiled script factories are independent of the script parameters, which are bound each time the factory creates
+ * a new script instance, so the cache is keyed by context, language, source and compiler options only.
+ *
+ * Scripts that miss the cache, e.g., those changed by a reload, are still compiled by the script service and so count
+ * towards its compilation rate limit, which {@link ElasticsearchIngestNode} sets high enough not to fail builds.
+ */
+class CachingScriptService extends ScriptService {
+
+    static final int MAX_CACHE_SIZE = 1000;
+
+    private static final Cache<CacheKey, Object> CACHE = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHE_SIZE)
+            .recordStats()
+            .build();
+
+    CachingScriptService(Settings settings, Map<String, ScriptEngine> engines, Map<String, ScriptContext<?>> contexts) {
+        super(settings, engines, contexts);
+    }
+
+    @Override
+    public <FactoryType> FactoryType compile(Script script, ScriptContext<FactoryType> context) {
+        if (script.getType() != ScriptType.INLINE) {
+            return super.compile(script, context);
+        }
+
+        CacheKey key = new CacheKey(context.name, script.getLang(), script.getIdOrCode(), script.getOptions());
+        try {
+            return context.factoryClazz.cast(CACHE.get(key, () -> super.compile(script, context)));
+        } catch (ExecutionException | UncheckedExecutionException | ExecutionError ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Discards every compiled script in the JVM-wide cache, e.g., so that benchmarks measure compilation.
+     */
+    static void invalidateAll() {
+        CACHE.invalidateAll();
+    }
+
+    /**
+     * Hit, miss and eviction counts for the JVM-wide compiled script cache.
+     */
+    static CacheStats stats() {
+        return CACHE.stats();
+    }
+
+    static long size() {
+        return CACHE.size();
+    }
+
+    private static final class CacheKey {
+
+        private final String context;
+        private final String lang;
+        private final String source;
+        private final Map<String, String> options;
+
+        CacheKey(String context, String lang, String source, Map<String, String> options) {
+            this.context = context;
+            this.lang = lang;
+            this.source = source;
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            CacheKey that = (CacheKey)o;
+            return context.equals(that.context) && Objects.equals(lang, that.lang) && source.equals(that.source)
+                    && Objects.equals(options, that.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(context, lang, source, options);
+        }
+    }
+}
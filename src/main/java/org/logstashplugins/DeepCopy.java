@@ -0,0 +1,37 @@
+package org.logstashplugins;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies the nested maps and lists that ingest documents, processor configurations and lookup results are made of.
+ */
+class DeepCopy {
+
+    private DeepCopy() {
+    }
+
+    /**
+     * Returns a deep copy of the supplied value's maps and lists. All other values are shared with the original.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T of(T value) {
+        if (value instanceof Map) {
+            Map<String, Object> copy = new LinkedHashMap<>();
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>)value).entrySet()) {
+                copy.put(entry.getKey(), of(entry.getValue()));
+            }
+            return (T)copy;
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            for (Object element : (List<Object>)value) {
+                copy.add(of(element));
+            }
+            return (T)copy;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,156 @@
+package org.logstashplugins;
+
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls a file or directory such as the pipeline definitions and invokes a callback whenever its modification time
+ * or size changes. The state of a directory is the latest modification time and the total size of it and its
+ * entries. Polling is used rather than a {@link java.nio.file.WatchService} so that files replaced by a rename or
+ * living on network file systems are picked up reliably.
+ *
+ * Logstash does not close filters, so watchers are polled by a single daemon thread shared by the JVM and only weakly
+ * reachable from it. A watcher that is no longer referenced by its filter stops being polled once it has been
+ * collected.
+ */
+class DefinitionsWatcher implements Closeable {
+
+    private static final ScheduledThreadPoolExecutor EXECUTOR = createExecutor();
+
+    private final String description;
+    private final Path path;
+    private final Runnable onChange;
+    private final Logger logger;
+    private final ScheduledFuture<?> poll;
+    private FileState lastState;
+
+    /**
+     * Creates a watcher that compares the path against the supplied state, which callers take with
+     * {@link FileState#of(Path)} before reading the path so that changes made while it is read are not missed.
+     */
+    DefinitionsWatcher(String description, Path path, FileState initialState, long intervalMillis, Runnable onChange,
+                       Logger logger) {
+        this.description = description;
+        this.path = path;
+        this.onChange = onChange;
+        this.logger = logger;
+        this.lastState = initialState;
+        Poll task = new Poll(this);
+        this.poll = EXECUTOR.scheduleWithFixedDelay(task, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        task.poll = poll;
+    }
+
+    private void check() {
+        FileState state = FileState.of(path);
+        if (state == null || state.equals(lastState)) {
+            return;
+        }
+        lastState = state;
+        try {
+            onChange.run();
+        } catch (Exception ex) {
+            logger.error("Error reloading {} from '{}', keeping the current version", description, path, ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        poll.cancel(false);
+    }
+
+    private static ScheduledThreadPoolExecutor createExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "ingest-node-definitions-watcher");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Polls a watcher for as long as it is reachable from elsewhere.
+     */
+    private static final class Poll implements Runnable {
+
+        private final WeakReference<DefinitionsWatcher> watcher;
+        private volatile ScheduledFuture<?> poll;
+
+        Poll(DefinitionsWatcher watcher) {
+            this.watcher = new WeakReference<>(watcher);
+        }
+
+        @Override
+        public void run() {
+            DefinitionsWatcher w = watcher.get();
+            if (w != null) {
+                w.check();
+            } else if (poll != null) {
+                poll.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * The modification time and size of a file or directory.
+     */
+    static final class FileState {
+
+        private final long modified;
+        private final long size;
+
+        private FileState(long modified, long size) {
+            this.modified = modified;
+            this.size = size;
+        }
+
+        /**
+         * Returns the current state of the path, or null if it cannot be read.
+         */
+        static FileState of(Path path) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                long modified = attributes.lastModifiedTime().toMillis();
+                long size = attributes.size();
+                if (attributes.isDirectory()) {
+                    try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                        for (Path entry : entries) {
+                            BasicFileAttributes entryAttributes =
+                                    Files.readAttributes(entry, BasicFileAttributes.class);
+                            modified = Math.max(modified, entryAttributes.lastModifiedTime().toMillis());
+                            size += entryAttributes.size();
+                        }
+                    }
+                }
+                return new FileState(modified, size);
+            } catch (IOException ex) {
+                // a file may be missing briefly while it is being replaced
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileState)) {
+                return false;
+            }
+            FileState that = (FileState)o;
+            return modified == that.modified && size == that.size;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(modified) * 31 + Long.hashCode(size);
+        }
+    }
+}
@@ -3,49 +3,42 @@ package org.logstashplugins;
 import co.elastic.logstash.api.Configuration;
 import co.elastic.logstash.api.Context;
 import co.elastic.logstash.api.Event;
-import co.elastic.logstash.api.EventFactory;
 import co.elastic.logstash.api.Filter;
 import co.elastic.logstash.api.FilterMatchListener;
 import co.elastic.logstash.api.LogstashPlugin;
+import co.elastic.logstash.api.NamespacedMetric;
 import co.elastic.logstash.api.PluginConfigSpec;
 import co.elastic.logstash.api.PluginHelper;
 import com.google.common.annotations.VisibleForTesting;
-import org.elasticsearch.common.bytes.BytesArray;
-import org.elasticsearch.common.bytes.BytesReference;
+import org.apache.logging.log4j.Logger;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.TimeValue;
-import org.elasticsearch.common.xcontent.XContentHelper;
-import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.Pipeline;
 import org.elasticsearch.ingest.Processor;
 import org.elasticsearch.ingest.common.IngestCommonPlugin;
-import org.elasticsearch.ingest.geoip.IngestGeoIpPlugin;
+import org.elasticsearch.ingest.geoip.GeoIpProcessor;
+import org.elasticsearch.ingest.useragent.UserAgentProcessor;
 import org.elasticsearch.ingest.useragent.IngestUserAgentPlugin;
-import org.elasticsearch.painless.PainlessScriptEngine;
-import org.elasticsearch.painless.spi.Whitelist;
-import org.elasticsearch.script.IngestConditionalScript;
-import org.elasticsearch.script.IngestScript;
-import org.elasticsearch.script.ScriptContext;
-import org.elasticsearch.script.ScriptEngine;
-import org.elasticsearch.script.ScriptModule;
-import org.elasticsearch.script.ScriptService;
-import org.elasticsearch.script.mustache.MustacheScriptEngine;
-import org.elasticsearch.threadpool.ThreadPool;
-
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ScheduledFuture;
 import java.util.function.BiFunction;
@@ -63,74 +56,474 @@ public class ElasticsearchIngestNode implements Filter, PipelineProvider {
             PluginConfigSpec.requiredStringSetting("pipeline_definitions");
     public static final PluginConfigSpec<String> PRIMARY_PIPELINE =
             PluginConfigSpec.stringSetting("primary_pipeline");
+    public static final PluginConfigSpec<String> PIPELINE_PATTERN =
+            PluginConfigSpec.stringSetting("pipeline_pattern");
+    public static final PluginConfigSpec<Boolean> INLINE_PIPELINES =
+            PluginConfigSpec.booleanSetting("inline_pipelines", false);
+    public static final PluginConfigSpec<Boolean> NATIVE_CONDITIONS =
+            PluginConfigSpec.booleanSetting("native_conditions", true);
+    public static final PluginConfigSpec<Boolean> NATIVE_PROCESSORS =
+            PluginConfigSpec.booleanSetting("native_processors", true);
+    public static final PluginConfigSpec<Boolean> BATCH_EXECUTION =
+            PluginConfigSpec.booleanSetting("batch_execution", false);
+    public static final PluginConfigSpec<Boolean> IN_PLACE =
+            PluginConfigSpec.booleanSetting("in_place", false);
+    public static final PluginConfigSpec<String> GEOIP_DATABASE_PATH =
+            PluginConfigSpec.stringSetting("geoip_database_path", "local_libs");
+    public static final PluginConfigSpec<Long> GEOIP_CACHE_SIZE =
+            PluginConfigSpec.numSetting("geoip_cache_size", 1000);
+    public static final PluginConfigSpec<Long> USER_AGENT_CACHE_SIZE =
+            PluginConfigSpec.numSetting("user_agent_cache_size", 1000);
+    public static final PluginConfigSpec<String> USER_AGENT_REGEX_PATH =
+            PluginConfigSpec.stringSetting("user_agent_regex_path");
+    public static final PluginConfigSpec<String> PROFILE_SAMPLE_RATE =
+            PluginConfigSpec.stringSetting("profile_sample_rate");
+    public static final PluginConfigSpec<String> PROFILE_PATH =
+            PluginConfigSpec.stringSetting("profile_path");
+    public static final PluginConfigSpec<Long> PARALLELISM =
+            PluginConfigSpec.numSetting("parallelism", 1);
+    public static final PluginConfigSpec<String> RELOAD_INTERVAL =
+            PluginConfigSpec.stringSetting("reload_interval");
+    public static final PluginConfigSpec<String> FAILURE_MODE =
+            PluginConfigSpec.stringSetting("failure_mode", "throw");
+    public static final PluginConfigSpec<String> FAILURE_TAG =
+            PluginConfigSpec.stringSetting("failure_tag", "_ingest_node_failure");
+
+    private static final TimeValue DEFAULT_WATCHDOG_TIME = TimeValue.timeValueSeconds(1);
+    // the default of 75 compilations every 5 minutes applies to each script service, which all filters share
+    static final String MAX_SCRIPT_COMPILATIONS_RATE = "100000/1m";
 
     private String id;
     private String nodeName;
-    private Map<String, Pipeline> pipelines;
-    private Pipeline primaryPipeline;
-    private EventFactory eventFactory;
+    private String primaryPipelineName;
+    private PipelineRouter router;
+    private TimeValue watchdogInterval;
+    private TimeValue watchdogMaxTime;
+    private volatile PipelineSet pipelineSet;
+    private Logger logger;
+    private IngestMetrics metrics;
+    private NamespacedMetric namespacedMetric;
+    private boolean inPlace;
+    private boolean inlinePipelines;
+    private boolean nativeConditions;
+    private boolean nativeProcessors;
+    private boolean batchExecution;
+    private String geoIpDatabasePath;
+    private long geoIpCacheSize;
+    private long userAgentCacheSize;
+    private UserAgentRegexes userAgentRegexes;
+    private FailureHandler failureHandler;
+    private ParallelExecutor parallelExecutor;
+    private PipelineProfiler profiler;
+    private long reloadIntervalMillis;
+    private DefinitionsWatcher definitionsWatcher;
+    private EnrichTable.Registry enrichTables;
+    private IngestServices services;
+    private Map<String, Processor.Factory> processorFactories;
+    private PipelineProcessor.Factory pipelineProcessorFactory;
 
     public ElasticsearchIngestNode(String id, Configuration config, Context context) {
-        this(id, config, context, toFileInputStream(config.get(PIPELINE_DEFINITIONS)));
+        // the state of the definitions is taken before they are read so that edits made meanwhile are reloaded
+        this(id, config, context, DefinitionsWatcher.FileState.of(Paths.get(config.get(PIPELINE_DEFINITIONS))));
+    }
+
+    private ElasticsearchIngestNode(String id, Configuration config, Context context,
+                                    DefinitionsWatcher.FileState definitionsState) {
+        this(id, config, context, readDefinitions(config.get(PIPELINE_DEFINITIONS)));
+        if (reloadIntervalMillis > 0) {
+            String path = config.get(PIPELINE_DEFINITIONS);
+            definitionsWatcher = new DefinitionsWatcher("pipeline definitions", Paths.get(path), definitionsState,
+                    reloadIntervalMillis, () -> reloadDefinitions(path), logger);
+        }
     }
 
     @VisibleForTesting
     ElasticsearchIngestNode(String id, Configuration config, Context context, InputStream pipelineDefinitions) {
+        this(id, config, context, readDefinitions(pipelineDefinitions));
+    }
+
+    private ElasticsearchIngestNode(String id, Configuration config, Context context,
+                                    List<IngestNodePipeline> ingestNodePipelines) {
         this.id = id;
-        this.eventFactory = context.getEventFactory();
+        this.logger = context.getLogger(this);
+        this.metrics = new IngestMetrics();
+        this.namespacedMetric = getMetric(context);
         this.nodeName = config.get(NODE_NAME) == null ? UUID.randomUUID().toString() : config.get(NODE_NAME);
-        String primaryPipelineName = config.get(PRIMARY_PIPELINE);
-        List<IngestNodePipeline> ingestNodePipelines;
+        this.inPlace = config.get(IN_PLACE);
+        this.inlinePipelines = config.get(INLINE_PIPELINES);
+        this.nativeConditions = config.get(NATIVE_CONDITIONS);
+        this.nativeProcessors = config.get(NATIVE_PROCESSORS);
+        this.batchExecution = config.get(BATCH_EXECUTION);
+        this.geoIpDatabasePath = config.get(GEOIP_DATABASE_PATH);
+        this.geoIpCacheSize = parseCacheSize(config, GEOIP_CACHE_SIZE);
+        this.userAgentCacheSize = parseCacheSize(config, USER_AGENT_CACHE_SIZE);
+        this.failureHandler = new FailureHandler(FailureHandler.Mode.from(config.get(FAILURE_MODE)),
+                config.get(FAILURE_TAG), context.getDlqWriter(), this, logger);
+        this.primaryPipelineName = config.get(PRIMARY_PIPELINE);
+        this.router = config.get(PIPELINE_PATTERN) == null ? null : new PipelineRouter(config.get(PIPELINE_PATTERN));
+        this.watchdogInterval = parseWatchdogSetting(config, WATCHDOG_INTERVAL);
+        this.watchdogMaxTime = parseWatchdogSetting(config, WATCHDOG_MAX_TIME);
+        this.reloadIntervalMillis = config.get(RELOAD_INTERVAL) == null
+                ? 0
+                : TimeValue.parseTimeValue(config.get(RELOAD_INTERVAL), RELOAD_INTERVAL.name()).millis();
+        // options are validated before anything is created that must be released if the filter cannot be created
+        long parallelism = config.get(PARALLELISM);
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1 but was " + parallelism);
+        }
+        double profileSampleRate = config.get(PROFILE_SAMPLE_RATE) == null
+                ? 0
+                : parseSampleRate(config.get(PROFILE_SAMPLE_RATE));
+        this.enrichTables = new EnrichTable.Registry(reloadIntervalMillis, logger);
+
         try {
-            ingestNodePipelines = IngestNodePipeline.createFrom(pipelineDefinitions);
-        } catch (IOException ex) {
-            throw new IllegalStateException("Error creating ingest node filter", ex);
+            if (config.get(USER_AGENT_REGEX_PATH) != null) {
+                this.userAgentRegexes = UserAgentRegexes.load(Paths.get(config.get(USER_AGENT_REGEX_PATH)));
+            }
+            this.services = IngestServices.get(getSharedSettings());
+            this.processorFactories = NativeConditionalProcessor.wrap(metrics.instrument(getProcessorFactories()),
+                    services.getScriptService());
+            this.pipelineSet = createPipelineSet(ingestNodePipelines, null);
+
+            if (parallelism > 1) {
+                parallelExecutor = new ParallelExecutor(id, (int)parallelism);
+            }
+        } catch (RuntimeException ex) {
+            try {
+                close();
+            } catch (RuntimeException closeEx) {
+                ex.addSuppressed(closeEx);
+            }
+            throw ex;
         }
+        if (profileSampleRate > 0) {
+            profiler = new PipelineProfiler(profileSampleRate,
+                    config.get(PROFILE_PATH) == null ? null : Paths.get(config.get(PROFILE_PATH)), logger);
+        }
+    }
 
+    /**
+     * Creates the set of pipelines for the supplied definitions. Pipelines are built when they are first referenced,
+     * starting with the primary pipeline and the pipelines it calls. If a previous set of pipelines is supplied, the
+     * pipelines it has built whose definitions have not changed, and that call no changed pipelines, are carried over
+     * as they are, and those whose definitions have changed are rebuilt before the new set is returned.
+     */
+    private PipelineSet createPipelineSet(List<IngestNodePipeline> ingestNodePipelines, PipelineSet previous) {
         if (ingestNodePipelines.size() == 0) {
             throw new IllegalStateException("No pipeline definitions found");
         }
 
-        this.pipelines = new Hashtable<>();
+        PipelineGraph graph = PipelineGraph.of(ingestNodePipelines);
+        graph.validateAcyclic();
+
+        Map<String, IngestNodePipeline> definitions = new LinkedHashMap<>();
         for (IngestNodePipeline p : ingestNodePipelines) {
-            pipelines.put(p.getName(), getPipeline(p.getName(), p.toIngestNodeFormat()));
+            definitions.put(p.getName(), p);
+        }
+
+        Set<String> changed = new HashSet<>();
+        if (previous == null) {
+            changed.addAll(definitions.keySet());
+        } else {
+            for (IngestNodePipeline p : ingestNodePipelines) {
+                if (!p.equals(previous.getDefinitions().get(p.getName()))) {
+                    changed.add(p.getName());
+                }
+            }
+            for (String name : previous.getDefinitions().keySet()) {
+                if (!definitions.containsKey(name)) {
+                    changed.add(name);
+                }
+            }
+        }
+        // pipeline processors are bound to the pipelines they call, and inlined pipelines are copied into their
+        // callers, so callers of changed pipelines are rebuilt too
+        Set<String> rebuilt = graph.withCallers(changed);
+        Map<String, IngestNodePipeline> compiled = inlinePipelines ? PipelineInliner.inline(definitions) : definitions;
+
+        Map<String, PipelineSet.Entry> carriedOver = new HashMap<>();
+        List<String> inUse = new ArrayList<>();
+        if (previous != null) {
+            for (String name : definitions.keySet()) {
+                PipelineSet.Entry entry = previous.getBuiltEntry(name);
+                if (entry != null && rebuilt.contains(name)) {
+                    inUse.add(name);
+                } else if (entry != null) {
+                    carriedOver.put(name, entry);
+                }
+            }
         }
 
         String resolvedPrimaryPipelineName = primaryPipelineName == null
                 ? ingestNodePipelines.get(0).getName()
                 : primaryPipelineName;
-        primaryPipeline = pipelines.get(resolvedPrimaryPipelineName);
-        if (primaryPipeline == null) {
+        if (!definitions.containsKey(resolvedPrimaryPipelineName)) {
             throw new IllegalStateException(
                     String.format("Could not find primary pipeline '%s'", resolvedPrimaryPipelineName));
         }
+        if (router == null) {
+            // without a pipeline pattern, events enter only through the primary pipeline, so the pipelines that it
+            // cannot reach are never built
+            Set<String> unreferenced = new LinkedHashSet<>(definitions.keySet());
+            unreferenced.removeAll(graph.reachableFrom(resolvedPrimaryPipelineName));
+            if (!unreferenced.isEmpty()) {
+                logger.info("Pipelines {} are not reachable from primary pipeline '{}' and will not be built",
+                        unreferenced, resolvedPrimaryPipelineName);
+            }
+        }
+        PipelineSet pipelines = new PipelineSet(definitions, compiled, resolvedPrimaryPipelineName, carriedOver,
+                this::buildPipeline);
+        // the primary pipeline and the changed pipelines that were in use are built up front so that they fail here
+        // rather than on the first event that reaches them
+        pipelines.getPrimaryPipeline();
+        for (String name : inUse) {
+            pipelines.getPipeline(name);
+        }
+        metrics.retainPipelines(definitions.keySet());
+        return pipelines;
+    }
+
+    /**
+     * Builds the named pipeline along with its native and batch versions, binding its pipeline processors to the
+     * pipelines that they call as resolved by the supplied provider.
+     */
+    private PipelineSet.Entry buildPipeline(String name, IngestNodePipeline definition, PipelineProvider provider) {
+        Pipeline pipeline;
+        try {
+            pipeline = getPipeline(name, definition.newPipelineConfig());
+        } catch (RuntimeException ex) {
+            pipelineProcessorFactory.discardAll();
+            throw ex;
+        }
+        pipelineProcessorFactory.bindAll(provider);
+        EventPipeline eventPipeline = nativeProcessors
+                ? EventPipeline.of(pipeline, metrics.getPipelineMetrics(name))
+                : null;
+        BatchPipeline batchPipeline = batchExecution
+                ? BatchPipeline.of(pipeline, metrics.getPipelineMetrics(name))
+                : null;
+        return new PipelineSet.Entry(pipeline, eventPipeline, batchPipeline);
+    }
+
+    private void reloadDefinitions(String path) {
+        List<IngestNodePipeline> ingestNodePipelines;
+        try {
+            ingestNodePipelines = IngestNodePipeline.createFrom(Paths.get(path));
+        } catch (IOException ex) {
+            throw new IllegalStateException("Error reading pipeline definitions", ex);
+        }
+        // the new pipelines are swapped in only once the pipelines in use have been built successfully
+        pipelineSet = createPipelineSet(ingestNodePipelines, pipelineSet);
+        logger.info("Reloaded pipeline definitions from '{}'", path);
     }
 
     @Override
     public Collection<Event> filter(Collection<Event> incomingEvents, FilterMatchListener listener) {
-        List<Event> outgoingEvents = new ArrayList<>();
-        for (Event evt : incomingEvents) {
-            IngestDocument doc = IngestMarshaller.toDocument(evt);
-            IngestDocument result;
-            try {
-                result = primaryPipeline.execute(doc);
-            } catch (Exception ex) {
-                // what to do here?
-                throw new IllegalStateException(ex);
-            }
-            if (result != null) {
-                Event event = eventFactory.newEvent();
-                IngestMarshaller.toEvent(result, event);
-                outgoingEvents.add(event);
-                listener.filterMatched(event);
+        List<Event> events = incomingEvents instanceof List
+                ? (List<Event>)incomingEvents
+                : new ArrayList<>(incomingEvents);
+        PipelineSet pipelines = pipelineSet;
+        List<Outcome> outcomes = router == null
+                ? process(pipelines, pipelines.getPrimaryPipeline(), events)
+                : route(pipelines, events);
+
+        List<Event> outgoingEvents = new ArrayList<>(outcomes.size());
+        for (int k = 0; k < outcomes.size(); k++) {
+            Outcome outcome = outcomes.get(k);
+            if (outcome.event != null) {
+                outgoingEvents.add(outcome.event);
+                if (outcome.matched) {
+                    listener.filterMatched(outcome.event);
+                }
             } else {
+                Event evt = events.get(k);
                 evt.cancel();
                 outgoingEvents.add(evt);
             }
         }
+        metrics.reportIfDue(namespacedMetric);
         return outgoingEvents;
     }
 
+    /**
+     * Runs each event through the pipeline selected for it by the pipeline pattern. Events for which the pattern
+     * cannot be resolved run through the primary pipeline. Events are grouped by pipeline so that each pipeline runs
+     * over all of its events in turn and pipeline names are looked up once per batch.
+     */
+    private List<Outcome> route(PipelineSet pipelines, List<Event> events) {
+        Outcome[] outcomes = new Outcome[events.size()];
+        Map<String, Pipeline> resolved = new HashMap<>();
+        Map<Pipeline, List<Integer>> groups = new LinkedHashMap<>();
+        for (int k = 0; k < events.size(); k++) {
+            Event evt = events.get(k);
+            String name = router.resolve(evt);
+            Pipeline pipeline;
+            try {
+                pipeline = name == null
+                        ? pipelines.getPrimaryPipeline()
+                        : resolved.computeIfAbsent(name, pipelines::getPipeline);
+            } catch (RuntimeException ex) {
+                // pipelines are built when first referenced, so a pipeline that cannot be built fails its events
+                outcomes[k] = fail(evt, ex);
+                continue;
+            }
+            if (pipeline == null) {
+                outcomes[k] = fail(evt, new IllegalStateException(String.format("Could not find pipeline '%s'", name)));
+            } else {
+                groups.computeIfAbsent(pipeline, p -> new ArrayList<>()).add(k);
+            }
+        }
+
+        for (Map.Entry<Pipeline, List<Integer>> group : groups.entrySet()) {
+            List<Integer> indices = group.getValue();
+            List<Event> groupEvents = new ArrayList<>(indices.size());
+            for (int index : indices) {
+                groupEvents.add(events.get(index));
+            }
+            List<Outcome> groupOutcomes = process(pipelines, group.getKey(), groupEvents);
+            for (int k = 0; k < indices.size(); k++) {
+                outcomes[indices.get(k)] = groupOutcomes.get(k);
+            }
+        }
+        return Arrays.asList(outcomes);
+    }
+
+    /**
+     * Runs the supplied pipeline against each of the supplied events. Events sampled by the profiler run through the
+     * ingest pipeline one at a time and all other events run as usual.
+     */
+    private List<Outcome> process(PipelineSet pipelines, Pipeline pipeline, List<Event> events) {
+        if (profiler == null) {
+            return run(pipelines, pipeline, events);
+        }
+        BitSet sampled = new BitSet(events.size());
+        List<Event> unsampledEvents = new ArrayList<>(events.size());
+        for (int k = 0; k < events.size(); k++) {
+            if (profiler.sample()) {
+                sampled.set(k);
+            } else {
+                unsampledEvents.add(events.get(k));
+            }
+        }
+        if (sampled.isEmpty()) {
+            return run(pipelines, pipeline, events);
+        }
+
+        Iterator<Outcome> unsampledOutcomes = run(pipelines, pipeline, unsampledEvents).iterator();
+        List<Outcome> outcomes = new ArrayList<>(events.size());
+        for (int k = 0; k < events.size(); k++) {
+            outcomes.add(sampled.get(k) ? profile(pipeline, events.get(k)) : unsampledOutcomes.next());
+        }
+        return outcomes;
+    }
+
+    /**
+     * Runs the supplied pipeline against each of the supplied events, in parallel if configured to do so. Pipelines
+     * made only of native processors run directly against the events, and otherwise pipelines with batch processors
+     * run against all of the events at once if batch execution is enabled.
+     */
+    private List<Outcome> run(PipelineSet pipelines, Pipeline pipeline, List<Event> events) {
+        EventPipeline eventPipeline = pipelines.getEventPipeline(pipeline);
+        if (parallelExecutor != null) {
+            return parallelExecutor.map(events, evt -> eventPipeline != null
+                    ? process(eventPipeline, evt)
+                    : process(pipeline, evt));
+        }
+        BatchPipeline batchPipeline = pipelines.getBatchPipeline(pipeline);
+        if (eventPipeline == null && batchPipeline != null) {
+            return process(batchPipeline, events);
+        }
+        List<Outcome> outcomes = new ArrayList<>(events.size());
+        for (Event evt : events) {
+            outcomes.add(eventPipeline != null ? process(eventPipeline, evt) : process(pipeline, evt));
+        }
+        return outcomes;
+    }
+
+    /**
+     * Runs the supplied pipeline against the supplied event.
+     */
+    private Outcome process(Pipeline pipeline, Event evt) {
+        // without in_place, pipelines run against a copy of the event so that the original is unchanged on failure.
+        // Both read fields lazily and write back only the fields that processors change.
+        org.logstash.Event target = inPlace ? (org.logstash.Event)evt : ((org.logstash.Event)evt).clone();
+        IngestDocument doc = IngestMarshaller.toLazyDocument(target);
+        IngestDocument result;
+        try {
+            result = pipeline.execute(doc);
+        } catch (Exception ex) {
+            return fail(evt, ex);
+        }
+        return succeed(result);
+    }
+
+    /**
+     * Runs the supplied pipeline against the supplied event with the profiler recording each processor that runs.
+     * The resulting event is the same as when the event is not profiled apart from the profile in its metadata.
+     */
+    private Outcome profile(Pipeline pipeline, Event evt) {
+        org.logstash.Event target = inPlace ? (org.logstash.Event)evt : ((org.logstash.Event)evt).clone();
+        IngestDocument doc = IngestMarshaller.toLazyDocument(target);
+        profiler.start(pipeline.getId(), doc);
+        IngestDocument result = null;
+        Exception failure = null;
+        try {
+            result = pipeline.execute(doc);
+        } catch (Exception ex) {
+            failure = ex;
+        }
+        Map<String, Object> profile = profiler.finish(result, failure);
+        Outcome outcome = failure != null ? fail(evt, failure) : succeed(result);
+        if (profile != null && outcome.event != null) {
+            outcome.event.setField(PipelineProfiler.PROFILE_METADATA, profile);
+        }
+        return outcome;
+    }
+
+    /**
+     * Runs the supplied batch pipeline against all of the supplied events at once.
+     */
+    private List<Outcome> process(BatchPipeline pipeline, List<Event> events) {
+        IngestDocument[] documents = new IngestDocument[events.size()];
+        for (int k = 0; k < documents.length; k++) {
+            Event evt = events.get(k);
+            org.logstash.Event target = inPlace ? (org.logstash.Event)evt : ((org.logstash.Event)evt).clone();
+            documents[k] = IngestMarshaller.toLazyDocument(target);
+        }
+        Exception[] failures = new Exception[documents.length];
+        pipeline.execute(documents, failures);
+
+        List<Outcome> outcomes = new ArrayList<>(documents.length);
+        for (int k = 0; k < documents.length; k++) {
+            outcomes.add(failures[k] != null ? fail(events.get(k), failures[k]) : succeed(documents[k]));
+        }
+        return outcomes;
+    }
+
+    private Outcome succeed(IngestDocument result) {
+        if (result == null) {
+            return Outcome.DROPPED;
+        }
+        return new Outcome(IngestMarshaller.writeBack(result), true);
+    }
+
+    /**
+     * Runs the supplied native pipeline against the supplied event without converting it to an ingest document.
+     */
+    private Outcome process(EventPipeline pipeline, Event evt) {
+        org.logstash.Event target = inPlace ? (org.logstash.Event)evt : ((org.logstash.Event)evt).clone();
+        try {
+            pipeline.execute(target);
+        } catch (Exception ex) {
+            return fail(evt, ex);
+        }
+        return new Outcome(IngestMarshaller.writeBackNative(target), true);
+    }
+
+    private Outcome fail(Event evt, Exception ex) {
+        return failureHandler.handle(evt, ex) ? new Outcome(evt, false) : Outcome.DROPPED;
+    }
+
     @Override
     public Collection<Event> flush(FilterMatchListener matchListener) {
         return Collections.emptyList();
@@ -146,79 +539,168 @@ public class ElasticsearchIngestNode implements Filter, PipelineProvider {
         return false;
     }
 
+    /**
+     * Stops reloading and releases the filter's worker threads and temporary files ahead of time. Logstash does not
+     * close filters, so none of these depend on this being called: watchers stop and idle workers exit once the filter
+     * is no longer referenced, and temporary files are deleted when the JVM exits.
+     */
+    public void close() {
+        if (definitionsWatcher != null) {
+            definitionsWatcher.close();
+        }
+        enrichTables.close();
+        if (parallelExecutor != null) {
+            parallelExecutor.close();
+        }
+        if (userAgentRegexes != null) {
+            try {
+                userAgentRegexes.close();
+            } catch (IOException ex) {
+                throw new IllegalStateException("Error closing ingest node filter", ex);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    IngestMetrics getMetrics() {
+        return metrics;
+    }
+
+    @VisibleForTesting
+    EventPipeline getEventPipeline(String name) {
+        PipelineSet pipelines = pipelineSet;
+        return pipelines.getEventPipeline(pipelines.getPipeline(name));
+    }
+
+    @VisibleForTesting
+    boolean isPipelineBuilt(String name) {
+        return pipelineSet.getBuiltEntry(name) != null;
+    }
+
+    @VisibleForTesting
+    BatchPipeline getBatchPipeline(String name) {
+        PipelineSet pipelines = pipelineSet;
+        return pipelines.getBatchPipeline(pipelines.getPipeline(name));
+    }
+
     @Override
     public Pipeline getPipelineByName(String name) {
-        return pipelines.get(name);
+        return pipelineSet.getPipeline(name);
     }
 
-    private Pipeline getPipeline(String pipelineId, String json) {
-        Pipeline pipeline = null;
+    private Pipeline getPipeline(String pipelineId, Map<String, Object> pipelineConfig) {
         try {
-            BytesReference b = new BytesArray(json);
-            Map<String, Object> pipelineConfig = XContentHelper.convertToMap(b, false, XContentType.JSON).v2();
-            pipeline = Pipeline.create(pipelineId, pipelineConfig, getProcessorFactories(), getScriptService());
+            if (nativeConditions) {
+                NativeConditionalProcessor.rewrite(pipelineConfig);
+            }
+            return metrics.createPipeline(pipelineId,
+                    () -> Pipeline.create(pipelineId, pipelineConfig, processorFactories, services.getScriptService()));
         } catch (Exception e) {
-            System.out.println("Error building pipeline\n" + e);
-            e.printStackTrace();
+            throw new IllegalStateException(String.format("Error building pipeline '%s'", pipelineId), e);
         }
-        return pipeline;
     }
 
     private Map<String, Processor.Factory> getProcessorFactories() {
         Processor.Parameters processorParameters = getParameters();
         IngestCommonPlugin ingestCommonPlugin = new IngestCommonPlugin();
         Map<String, Processor.Factory> defaultFactories = ingestCommonPlugin.getProcessors(processorParameters);
-        Map<String, Processor.Factory> userAgentFactory = new IngestUserAgentPlugin().getProcessors(processorParameters);
-        Map<String, Processor.Factory> geoipFactory = new IngestGeoIpPlugin().getProcessors(processorParameters);
+        Processor.Factory userAgentFactory =
+                new IngestUserAgentPlugin().getProcessors(processorParameters).get(UserAgentProcessor.TYPE);
+        if (userAgentCacheSize > 0) {
+            userAgentFactory = new CachingProcessor.Factory(userAgentFactory, userAgentCacheSize,
+                    metrics.userAgentCache, "user_agent", "regex_file", "properties", "ecs");
+        }
+        Processor.Factory geoipFactory = GeoIpDatabases.get(Paths.get(geoIpDatabasePath)).getFactory();
+        if (geoIpCacheSize > 0) {
+            geoipFactory = new CachingProcessor.Factory(geoipFactory, geoIpCacheSize, metrics.geoIpCache, "geoip",
+                    "database_file", "properties");
+        }
         Map<String, Processor.Factory> overriddenFactories = new HashMap<>(defaultFactories);
-        overriddenFactories.putAll(userAgentFactory);
-        overriddenFactories.putAll(geoipFactory);
-        overriddenFactories.put(PipelineProcessor.TYPE, new PipelineProcessor.Factory(this));
+        overriddenFactories.put(UserAgentProcessor.TYPE, userAgentFactory);
+        overriddenFactories.put(GeoIpProcessor.TYPE, geoipFactory);
+        if (nativeProcessors) {
+            overriddenFactories = NativeProcessor.override(overriddenFactories);
+        }
+        if (batchExecution) {
+            overriddenFactories = MemoizingBatchProcessor.override(overriddenFactories);
+        }
+        pipelineProcessorFactory = new PipelineProcessor.Factory(this);
+        overriddenFactories.put(PipelineProcessor.TYPE, pipelineProcessorFactory);
         overriddenFactories.put(SetSecurityUserProcessor.TYPE, new SetSecurityUserProcessor.Factory());
+        overriddenFactories.put(EnrichProcessor.TYPE, new EnrichProcessor.Factory(enrichTables));
         return Collections.unmodifiableMap(overriddenFactories);
     }
 
     private Processor.Parameters getParameters() {
-        final ThreadPool threadPool = new ThreadPool(getSettings());
+        BiFunction<Long, Runnable, ScheduledFuture<?>> scheduler = services::schedule;
+        return new Processor.Parameters(getEnvironment(), services.getScriptService(), null, null,
+                services::relativeTimeInMillis, scheduler, null);
+    }
 
-        BiFunction<Long, Runnable, ScheduledFuture<?>> scheduler =
-                (delay, command) -> threadPool.schedule(TimeValue.timeValueMillis(delay), ThreadPool.Names.GENERIC, command);
-        return new Processor.Parameters(getEnvironment(), getScriptService(), null, null,
-                threadPool::relativeTimeInMillis, scheduler, null);
+    /**
+     * Settings for the thread pool and script service that may be shared with other filters in the same JVM.
+     */
+    private static Settings getSharedSettings() {
+        return Settings.builder()
+                .put("path.home", "/")
+                .put("node.name", "logstash_ingest_node")
+                .put("script.max_compilations_rate", MAX_SCRIPT_COMPILATIONS_RATE)
+                .build();
     }
 
     private Settings getSettings() {
         return Settings.builder()
-                .put("path.home", "/")
+                .put(getSharedSettings())
                 .put("node.name", nodeName)
-                .put("ingest.grok.watchdog.interval", "1s")
-                .put("ingest.grok.watchdog.max_execution_time", "1s")
-                .put("ingest.geoip.database_path", "local_libs")
+                .put("ingest.grok.watchdog.interval", watchdogInterval.getStringRep())
+                .put("ingest.grok.watchdog.max_execution_time", watchdogMaxTime.getStringRep())
                 .build();
     }
 
-    private Environment getEnvironment() {
-        return new Environment(getSettings(), null);
+    private static TimeValue parseWatchdogSetting(Configuration config, PluginConfigSpec<String> setting) {
+        TimeValue value = TimeValue.parseTimeValue(config.get(setting), DEFAULT_WATCHDOG_TIME, setting.name());
+        if (value.millis() <= 0) {
+            throw new IllegalArgumentException(
+                    String.format("Setting '%s' must be positive but was '%s'", setting.name(), config.get(setting)));
+        }
+        return value;
     }
 
-    private ScriptService getScriptService() {
-        Map<String, ScriptEngine> engines = new HashMap<>();
-        engines.put(PainlessScriptEngine.NAME, new PainlessScriptEngine(getSettings(), scriptContexts()));
-        engines.put(MustacheScriptEngine.NAME, new MustacheScriptEngine());
-        return new ScriptService(getSettings(), engines, ScriptModule.CORE_CONTEXTS);
+    private static double parseSampleRate(String value) {
+        double sampleRate;
+        try {
+            sampleRate = Double.parseDouble(value);
+        } catch (NumberFormatException ex) {
+            sampleRate = Double.NaN;
+        }
+        if (!(sampleRate > 0 && sampleRate <= 1)) {
+            throw new IllegalArgumentException(
+                    String.format("Setting '%s' must be greater than 0 and at most 1 but was '%s'",
+                            PROFILE_SAMPLE_RATE.name(), value));
+        }
+        return sampleRate;
     }
 
-    private static Map<ScriptContext<?>, List<Whitelist>> scriptContexts() {
-        Map<ScriptContext<?>, List<Whitelist>> contexts = new HashMap<>();
-        contexts.put(IngestScript.CONTEXT, Whitelist.BASE_WHITELISTS);
-        contexts.put(IngestConditionalScript.CONTEXT, Whitelist.BASE_WHITELISTS);
-        return contexts;
+    private static long parseCacheSize(Configuration config, PluginConfigSpec<Long> setting) {
+        long size = config.get(setting);
+        if (size < 0) {
+            throw new IllegalArgumentException(
+                    String.format("Setting '%s' must not be negative but was '%d'", setting.name(), size));
+        }
+        return size;
+    }
+
+    private Environment getEnvironment() {
+        return new Environment(getSettings(), userAgentRegexes == null ? null : userAgentRegexes.getConfigDirectory());
     }
 
     @Override
     public Collection<PluginConfigSpec<?>> configSchema() {
         return PluginHelper.commonFilterSettings(Arrays.asList(NODE_NAME, WATCHDOG_INTERVAL, WATCHDOG_MAX_TIME,
-                PIPELINE_DEFINITIONS, PRIMARY_PIPELINE));
+                PIPELINE_DEFINITIONS, PRIMARY_PIPELINE, PIPELINE_PATTERN, INLINE_PIPELINES, NATIVE_CONDITIONS,
+                NATIVE_PROCESSORS, BATCH_EXECUTION, IN_PLACE, GEOIP_DATABASE_PATH, GEOIP_CACHE_SIZE,
+                USER_AGENT_CACHE_SIZE, USER_AGENT_REGEX_PATH, PROFILE_SAMPLE_RATE, PROFILE_PATH, PARALLELISM,
+                RELOAD_INTERVAL, FAILURE_MODE, FAILURE_TAG));
     }
 
     @Override
@@ -226,11 +708,53 @@ public class ElasticsearchIngestNode implements Filter, PipelineProvider {
         return id;
     }
 
-    private static FileInputStream toFileInputStream(String filename) {
+    /**
+     * Returns the metric under which the filter reports, or null if the context has no metric store, as when the
+     * filter runs outside of a Logstash pipeline. Such a context fails when asked for a metric rather than returning
+     * null, so the failure is taken to mean that metrics are not reported.
+     */
+    private NamespacedMetric getMetric(Context context) {
         try {
-            return new FileInputStream(filename);
-        } catch (FileNotFoundException ex) {
-            throw new IllegalArgumentException("Unable to open file '" + filename + "'", ex);
+            return context.getMetric(this);
+        } catch (RuntimeException ex) {
+            logger.debug("No metric store is available, metrics will not be reported", ex);
+            return null;
+        }
+    }
+
+    /**
+     * The event resulting from running an event through its pipeline and whether the pipeline succeeded.
+     * Events that were dropped have no resulting event.
+     */
+    private static final class Outcome {
+
+        static final Outcome DROPPED = new Outcome(null, false);
+
+        private final Event event;
+        private final boolean matched;
+
+        Outcome(Event event, boolean matched) {
+            this.event = event;
+            this.matched = matched;
+        }
+    }
+
+    private static List<IngestNodePipeline> readDefinitions(String path) {
+        if (!Files.exists(Paths.get(path))) {
+            throw new IllegalArgumentException("Unable to open file '" + path + "'");
+        }
+        try {
+            return IngestNodePipeline.createFrom(Paths.get(path));
+        } catch (IOException ex) {
+            throw new IllegalStateException("Error creating ingest node filter", ex);
+        }
+    }
+
+    private static List<IngestNodePipeline> readDefinitions(InputStream pipelineDefinitions) {
+        try {
+            return IngestNodePipeline.createFrom(pipelineDefinitions);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Error creating ingest node filter", ex);
         }
     }
 }
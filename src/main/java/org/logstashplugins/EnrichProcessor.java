@@ -0,0 +1,103 @@
+package org.logstashplugins;
+
+import org.elasticsearch.ingest.AbstractProcessor;
+import org.elasticsearch.ingest.ConfigurationUtils;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies the row of a local lookup table whose key matches a field of the document to a target field, in the manner
+ * of the {@code enrich} processor of later versions of Elasticsearch but without an enrich policy or index. Documents
+ * whose field matches no row are left unchanged.
+ */
+public class EnrichProcessor extends AbstractProcessor {
+
+    public static final String TYPE = "enrich";
+
+    private final EnrichTable table;
+    private final String field;
+    private final String targetField;
+    private final boolean ignoreMissing;
+    private final boolean override;
+
+    private EnrichProcessor(String tag, EnrichTable table, String field, String targetField, boolean ignoreMissing,
+                            boolean override) {
+        super(tag);
+        this.table = table;
+        this.field = field;
+        this.targetField = targetField;
+        this.ignoreMissing = ignoreMissing;
+        this.override = override;
+    }
+
+    @Override
+    public IngestDocument execute(IngestDocument ingestDocument) throws Exception {
+        Object value = ingestDocument.getFieldValue(field, Object.class, ignoreMissing);
+        if (value == null) {
+            if (ignoreMissing) {
+                return ingestDocument;
+            }
+            throw new IllegalArgumentException(String.format("field [%s] is null, cannot enrich it.", field));
+        }
+        if (!override && ingestDocument.hasField(targetField)) {
+            return ingestDocument;
+        }
+
+        Map<String, Object> row = null;
+        if (value instanceof List) {
+            // the first value that matches a row is used
+            for (Object element : (List<?>)value) {
+                row = element == null ? null : table.lookup(element);
+                if (row != null) {
+                    break;
+                }
+            }
+        } else {
+            row = table.lookup(value);
+        }
+        if (row != null) {
+            ingestDocument.setFieldValue(targetField, row);
+        }
+        return ingestDocument;
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public static final class Factory implements Processor.Factory {
+
+        private final EnrichTable.Registry tables;
+
+        Factory(EnrichTable.Registry tables) {
+            this.tables = tables;
+        }
+
+        @Override
+        public EnrichProcessor create(Map<String, Processor.Factory> registry, String processorTag,
+                                      Map<String, Object> config) {
+            String file = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "file");
+            String field = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "field");
+            String targetField = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "target_field");
+            String matchField = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "match_field");
+            String matchType = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "match_type", "match");
+            boolean ignoreMissing = ConfigurationUtils.readBooleanProperty(TYPE, processorTag, config, "ignore_missing",
+                    false);
+            boolean override = ConfigurationUtils.readBooleanProperty(TYPE, processorTag, config, "override", true);
+
+            EnrichTable.Type type;
+            try {
+                type = EnrichTable.Type.from(matchType);
+            } catch (IllegalArgumentException ex) {
+                throw ConfigurationUtils.newConfigurationException(TYPE, processorTag, "match_type", ex.getMessage());
+            }
+            EnrichTable table = tables.get(Paths.get(file), matchField, type);
+            return new EnrichProcessor(processorTag, table, field, targetField, ignoreMissing, override);
+        }
+    }
+}
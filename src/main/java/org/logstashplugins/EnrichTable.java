@@ -0,0 +1,430 @@
+package org.logstashplugins;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.google.common.net.InetAddresses;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A lookup table loaded from a local CSV, JSON or YAML file and indexed by one of its columns for the {@code enrich}
+ * processor. CSV files have a header row, and JSON and YAML files hold an array of objects.
+ *
+ * Rows are stored as arrays of values that share a single array of column names. Tables are indexed either for exact
+ * matches of the key column or, for range tables, by the IP address range given in the key column as a CIDR block or
+ * single address, which are kept in sorted arrays of primitive bounds for binary search. When the table is reloaded,
+ * the new index is built in full before it replaces the current one, so lookups always see one complete version.
+ */
+class EnrichTable {
+
+    enum Type {
+        MATCH, RANGE;
+
+        static Type from(String type) {
+            try {
+                return valueOf(type.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException(String.format("Unknown enrich match type '%s'", type), ex);
+            }
+        }
+    }
+
+    private final Path path;
+    private final String matchField;
+    private final Type type;
+    private volatile Index index;
+
+    private EnrichTable(Path path, String matchField, Type type) {
+        this.path = path;
+        this.matchField = matchField;
+        this.type = type;
+        this.index = load();
+    }
+
+    /**
+     * Returns the row whose key matches the supplied value, or null if there is none. For range tables, the most
+     * specific range containing the supplied address is matched.
+     */
+    Map<String, Object> lookup(Object value) {
+        return index.lookup(value);
+    }
+
+    private void reload() {
+        index = load();
+    }
+
+    private Index load() {
+        List<Map<String, Object>> rows;
+        try {
+            rows = readRows(path);
+        } catch (IOException ex) {
+            throw new IllegalStateException(String.format("Error reading enrich table '%s'", path), ex);
+        }
+
+        List<String> columns = new ArrayList<>();
+        for (Map<String, Object> row : rows) {
+            for (String column : row.keySet()) {
+                if (!columns.contains(column)) {
+                    columns.add(column);
+                }
+            }
+        }
+        if (!rows.isEmpty() && !columns.contains(matchField)) {
+            throw new IllegalArgumentException(
+                    String.format("Enrich table '%s' has no field '%s'", path, matchField));
+        }
+        String[] names = columns.toArray(new String[0]);
+        int keyColumn = columns.indexOf(matchField);
+        Object[][] values = new Object[rows.size()][];
+        for (int k = 0; k < rows.size(); k++) {
+            values[k] = new Object[names.length];
+            for (int j = 0; j < names.length; j++) {
+                values[k][j] = rows.get(k).get(names[j]);
+            }
+        }
+        return type == Type.MATCH
+                ? new MatchIndex(names, values, keyColumn)
+                : new RangeIndex(names, values, keyColumn, path);
+    }
+
+    private static List<Map<String, Object>> readRows(Path path) throws IOException {
+        String filename = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (filename.endsWith(".csv")) {
+            try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                return Csv.read(reader);
+            }
+        }
+        ObjectMapper mapper;
+        if (filename.endsWith(".json")) {
+            mapper = new ObjectMapper();
+        } else if (filename.endsWith(".yml") || filename.endsWith(".yaml")) {
+            mapper = new ObjectMapper(new YAMLFactory());
+        } else {
+            throw new IllegalArgumentException(
+                    String.format("Enrich table '%s' must be a .csv, .json, .yml or .yaml file", path));
+        }
+        try (InputStream is = Files.newInputStream(path)) {
+            List<Map<String, Object>> rows = mapper.readValue(is, new TypeReference<List<Map<String, Object>>>() {});
+            return rows == null ? new ArrayList<>() : rows;
+        }
+    }
+
+    private abstract static class Index {
+
+        private final String[] names;
+        private final Object[][] values;
+
+        Index(String[] names, Object[][] values) {
+            this.names = names;
+            this.values = values;
+        }
+
+        abstract Map<String, Object> lookup(Object value);
+
+        /**
+         * Returns a copy of the supplied row that the ingest document is free to mutate.
+         */
+        Map<String, Object> row(int row) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            for (int k = 0; k < names.length; k++) {
+                if (values[row][k] != null) {
+                    m.put(names[k], DeepCopy.of(values[row][k]));
+                }
+            }
+            return m;
+        }
+
+        Object key(int row, int keyColumn) {
+            return values[row][keyColumn];
+        }
+    }
+
+    private static final class MatchIndex extends Index {
+
+        // row numbers keyed by the string form of their key, so that keys read from CSV match numeric values
+        private final Map<String, Integer> rows = new HashMap<>();
+
+        MatchIndex(String[] names, Object[][] values, int keyColumn) {
+            super(names, values);
+            for (int k = 0; k < values.length; k++) {
+                Object key = key(k, keyColumn);
+                if (key != null) {
+                    // the first row wins if keys are repeated
+                    rows.putIfAbsent(key.toString(), k);
+                }
+            }
+        }
+
+        @Override
+        Map<String, Object> lookup(Object value) {
+            Integer row = rows.get(value.toString());
+            return row == null ? null : row(row);
+        }
+    }
+
+    /**
+     * An index of IP address ranges. Addresses are mapped to 128-bit numbers, with IPv4 addresses as IPv4-mapped IPv6
+     * addresses, and held as pairs of longs compared as unsigned numbers. Ranges are sorted by their start address and
+     * then by descending end address, and the running maximum of the end addresses bounds the search for the ranges
+     * that contain an address.
+     */
+    private static final class RangeIndex extends Index {
+
+        private final long[] startHigh;
+        private final long[] startLow;
+        private final long[] endHigh;
+        private final long[] endLow;
+        private final long[] maxEndHigh;
+        private final long[] maxEndLow;
+        private final int[] rows;
+
+        RangeIndex(String[] names, Object[][] values, int keyColumn, Path path) {
+            super(names, values);
+            List<long[]> ranges = new ArrayList<>();
+            for (int k = 0; k < values.length; k++) {
+                Object key = key(k, keyColumn);
+                if (key != null) {
+                    long[] range = parseRange(key.toString(), path);
+                    ranges.add(new long[]{range[0], range[1], range[2], range[3], k});
+                }
+            }
+            ranges.sort((a, b) -> {
+                int c = compare(a[0], a[1], b[0], b[1]);
+                return c != 0 ? c : compare(b[2], b[3], a[2], a[3]);
+            });
+
+            int n = ranges.size();
+            startHigh = new long[n];
+            startLow = new long[n];
+            endHigh = new long[n];
+            endLow = new long[n];
+            maxEndHigh = new long[n];
+            maxEndLow = new long[n];
+            rows = new int[n];
+            for (int k = 0; k < n; k++) {
+                long[] range = ranges.get(k);
+                startHigh[k] = range[0];
+                startLow[k] = range[1];
+                endHigh[k] = range[2];
+                endLow[k] = range[3];
+                rows[k] = (int)range[4];
+                if (k == 0 || compare(range[2], range[3], maxEndHigh[k - 1], maxEndLow[k - 1]) > 0) {
+                    maxEndHigh[k] = range[2];
+                    maxEndLow[k] = range[3];
+                } else {
+                    maxEndHigh[k] = maxEndHigh[k - 1];
+                    maxEndLow[k] = maxEndLow[k - 1];
+                }
+            }
+        }
+
+        @Override
+        Map<String, Object> lookup(Object value) {
+            long[] address = toLongs(InetAddresses.forString(value.toString()));
+            long high = address[0];
+            long low = address[1];
+
+            // the last range that starts at or before the address
+            int lo = 0;
+            int hi = rows.length - 1;
+            int last = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(startHigh[mid], startLow[mid], high, low) <= 0) {
+                    last = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            // ranges either nest or are disjoint, so the first containing range found is the most specific
+            for (int k = last; k >= 0 && compare(maxEndHigh[k], maxEndLow[k], high, low) >= 0; k--) {
+                if (compare(endHigh[k], endLow[k], high, low) >= 0) {
+                    return row(rows[k]);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Parses a CIDR block or single address into its first and last addresses.
+         */
+        private static long[] parseRange(String range, Path path) {
+            int slash = range.indexOf('/');
+            InetAddress address;
+            int prefix;
+            try {
+                address = InetAddresses.forString(slash < 0 ? range : range.substring(0, slash));
+                int bits = address instanceof Inet4Address ? 32 : 128;
+                prefix = slash < 0 ? bits : Integer.parseInt(range.substring(slash + 1));
+                if (prefix < 0 || prefix > bits) {
+                    throw new IllegalArgumentException("invalid prefix length");
+                }
+                prefix += 128 - bits;
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException(
+                        String.format("Invalid IP range '%s' in enrich table '%s'", range, path), ex);
+            }
+            long[] start = toLongs(address);
+            long maskHigh = prefix >= 64 ? -1L : prefix == 0 ? 0L : -1L << (64 - prefix);
+            long maskLow = prefix <= 64 ? 0L : prefix == 128 ? -1L : -1L << (128 - prefix);
+            return new long[]{start[0] & maskHigh, start[1] & maskLow, start[0] | ~maskHigh, start[1] | ~maskLow};
+        }
+
+        private static long[] toLongs(InetAddress address) {
+            byte[] bytes = address.getAddress();
+            if (bytes.length == 4) {
+                byte[] mapped = new byte[16];
+                mapped[10] = (byte)0xff;
+                mapped[11] = (byte)0xff;
+                System.arraycopy(bytes, 0, mapped, 12, 4);
+                bytes = mapped;
+            }
+            long high = 0;
+            long low = 0;
+            for (int k = 0; k < 8; k++) {
+                high = (high << 8) | (bytes[k] & 0xff);
+                low = (low << 8) | (bytes[k + 8] & 0xff);
+            }
+            return new long[]{high, low};
+        }
+
+        private static int compare(long aHigh, long aLow, long bHigh, long bLow) {
+            int c = Long.compareUnsigned(aHigh, bHigh);
+            return c != 0 ? c : Long.compareUnsigned(aLow, bLow);
+        }
+    }
+
+    /**
+     * A minimal reader for CSV files as described in RFC 4180, with a header row naming the columns.
+     */
+    private static final class Csv {
+
+        static List<Map<String, Object>> read(Reader reader) throws IOException {
+            List<List<String>> records = new ArrayList<>();
+            List<String> record = new ArrayList<>();
+            StringBuilder value = new StringBuilder();
+            boolean quoted = false;
+            boolean wasQuoted = false;
+            int c = reader.read();
+            while (c != -1) {
+                if (quoted) {
+                    if (c == '"') {
+                        int next = reader.read();
+                        if (next == '"') {
+                            value.append('"');
+                        } else {
+                            quoted = false;
+                            c = next;
+                            continue;
+                        }
+                    } else {
+                        value.append((char)c);
+                    }
+                } else if (c == '"' && value.length() == 0) {
+                    quoted = true;
+                    wasQuoted = true;
+                } else if (c == ',') {
+                    record.add(value.toString());
+                    value.setLength(0);
+                    wasQuoted = false;
+                } else if (c == '\n' || c == '\r') {
+                    // blank lines, including those between the characters of a CRLF line break, are skipped
+                    if (!record.isEmpty() || value.length() > 0 || wasQuoted) {
+                        record.add(value.toString());
+                        records.add(record);
+                    }
+                    record = new ArrayList<>();
+                    value.setLength(0);
+                    wasQuoted = false;
+                } else {
+                    value.append((char)c);
+                }
+                c = reader.read();
+            }
+            if (!record.isEmpty() || value.length() > 0 || wasQuoted) {
+                record.add(value.toString());
+                records.add(record);
+            }
+
+            List<Map<String, Object>> rows = new ArrayList<>();
+            if (records.isEmpty()) {
+                return rows;
+            }
+            List<String> header = records.get(0);
+            for (List<String> r : records.subList(1, records.size())) {
+                Map<String, Object> row = new LinkedHashMap<>();
+                for (int k = 0; k < header.size() && k < r.size(); k++) {
+                    row.put(header.get(k), r.get(k));
+                }
+                rows.add(row);
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * The tables used by the {@code enrich} processors of a filter. Processors that use the same file, key column and
+     * match type share a table, and tables are checked for changes and reloaded at the filter's reload interval.
+     */
+    static final class Registry implements Closeable {
+
+        private final long reloadIntervalMillis;
+        private final Logger logger;
+        private final Map<List<Object>, EnrichTable> tables = new HashMap<>();
+        private final List<DefinitionsWatcher> watchers = new ArrayList<>();
+
+        /**
+         * Creates a registry that reloads changed tables at the supplied interval, or never if it is zero.
+         */
+        Registry(long reloadIntervalMillis, Logger logger) {
+            this.reloadIntervalMillis = reloadIntervalMillis;
+            this.logger = logger;
+        }
+
+        synchronized EnrichTable get(Path path, String matchField, Type type) {
+            Path file = path.toAbsolutePath().normalize();
+            List<Object> key = Arrays.asList(file, matchField, type);
+            EnrichTable table = tables.get(key);
+            if (table == null) {
+                // taken before the table is loaded so that changes made while it loads are reloaded
+                DefinitionsWatcher.FileState state = DefinitionsWatcher.FileState.of(file);
+                table = new EnrichTable(file, matchField, type);
+                tables.put(key, table);
+                if (reloadIntervalMillis > 0) {
+                    EnrichTable reloaded = table;
+                    watchers.add(new DefinitionsWatcher("enrich table", file, state, reloadIntervalMillis, () -> {
+                        reloaded.reload();
+                        logger.info("Reloaded enrich table from '{}'", file);
+                    }, logger));
+                }
+            }
+            return table;
+        }
+
+        @Override
+        public synchronized void close() {
+            for (DefinitionsWatcher watcher : watchers) {
+                watcher.close();
+            }
+            watchers.clear();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.logstashplugins;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ingest.CompoundProcessor;
+import org.elasticsearch.ingest.Pipeline;
+import org.elasticsearch.ingest.Processor;
+import org.logstash.Event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs a pipeline made only of {@link NativeProcessor}s directly against a Logstash event without converting it to an
+ * ingest document. Metrics are recorded and failures reported as they are when the pipeline runs as an ingest
+ * pipeline.
+ */
+class EventPipeline {
+
+    private final List<Step> steps;
+    private final IngestMetrics.PipelineMetrics metrics;
+
+    private EventPipeline(List<Step> steps, IngestMetrics.PipelineMetrics metrics) {
+        this.steps = steps;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns an event pipeline equivalent to the supplied pipeline or null if any of its processors cannot run
+     * natively. Processors may have conditions only if they can be evaluated without a script.
+     */
+    static EventPipeline of(Pipeline pipeline, IngestMetrics.PipelineMetrics metrics) {
+        CompoundProcessor compound = pipeline.getCompoundProcessor();
+        if (compound.isIgnoreFailure() || !compound.getOnFailureProcessors().isEmpty()) {
+            return null;
+        }
+        List<Step> steps = new ArrayList<>();
+        for (Processor processor : compound.getProcessors()) {
+            ProcessorCondition condition = null;
+            if (processor instanceof NativeConditionalProcessor) {
+                condition = ((NativeConditionalProcessor)processor).getCondition();
+                if (condition.needsScript()) {
+                    return null;
+                }
+                processor = ((NativeConditionalProcessor)processor).getProcessor();
+            }
+            if (!(processor instanceof InstrumentedProcessor)
+                    || !(((InstrumentedProcessor)processor).getDelegate() instanceof NativeProcessor)) {
+                return null;
+            }
+            InstrumentedProcessor instrumented = (InstrumentedProcessor)processor;
+            steps.add(new Step((NativeProcessor)instrumented.getDelegate(), condition, instrumented.getMetrics()));
+        }
+        return new EventPipeline(Collections.unmodifiableList(steps), metrics);
+    }
+
+    void execute(Event event) throws Exception {
+        long start = System.nanoTime();
+        metrics.in.increment();
+        try {
+            for (Step step : steps) {
+                step.execute(event);
+            }
+            metrics.out.increment();
+        } catch (Exception e) {
+            metrics.failed.increment();
+            throw e;
+        } finally {
+            metrics.nanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private static final class Step {
+
+        private final NativeProcessor processor;
+        private final NativeProcessor.EventProcessor eventProcessor;
+        private final ProcessorCondition condition;
+        private final IngestMetrics.ProcessorMetrics metrics;
+
+        Step(NativeProcessor processor, ProcessorCondition condition, IngestMetrics.ProcessorMetrics metrics) {
+            this.processor = processor;
+            this.eventProcessor = processor.getEventProcessor();
+            this.condition = condition;
+            this.metrics = metrics;
+        }
+
+        void execute(Event event) throws Exception {
+            // conditions that need no script never evaluate to UNKNOWN
+            if (condition != null && condition.evaluate(new EventWrapper(event)) != ProcessorCondition.Result.TRUE) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                eventProcessor.execute(event);
+                metrics.record(System.nanoTime() - start, null);
+            } catch (Exception e) {
+                metrics.record(System.nanoTime() - start, e);
+                throw failure(processor, e);
+            }
+        }
+    }
+
+    /**
+     * Wraps the supplied exception with the type and tag of the processor that threw it as ingest node does. Exceptions
+     * that already carry them, such as those thrown by the pipelines that pipeline processors call, are returned as
+     * they are.
+     */
+    static ElasticsearchException failure(Processor processor, Exception e) {
+        if (e instanceof ElasticsearchException && ((ElasticsearchException)e).getHeader("processor_type") != null) {
+            return (ElasticsearchException)e;
+        }
+        ElasticsearchException failure = new ElasticsearchException(e);
+        failure.addHeader("processor_type", processor.getType());
+        if (processor.getTag() != null) {
+            failure.addHeader("processor_tag", processor.getTag());
+        }
+        return failure;
+    }
+}
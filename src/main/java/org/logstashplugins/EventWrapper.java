@@ -1,15 +1,39 @@
 package org.logstashplugins;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ForwardingList;
+import com.google.common.collect.ForwardingMap;
 import org.logstash.Event;
+import org.logstash.Javafier;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 
+/**
+ * Exposes the top-level fields of a Logstash event as the source map of an
+ * {@link org.elasticsearch.ingest.IngestDocument} without copying the event up front. Values are converted to their Java representation only when a processor reads
+ * them and scalar writes go straight through to the event.
+ *
+ * Maps and lists handed out to processors are copies of the event's values that the ingest document is free to
+ * mutate in place (e.g., when setting a nested field). They are wrapped so that mutating them marks the top-level
+ * field that holds them as dirty, and only dirty fields are written back to the event when {@link #flush()} is
+ * called, so fields that processors only read are never converted back.
+ */
 public class EventWrapper implements Map<String, Object> {
 
-    private Event e;
-    //private boolean deepCopy;
+    private final Event e;
+    private final Map<String, Object> converted = new HashMap<>();
+    private Set<String> dirty;
 
     EventWrapper(Event e) {
         this.e = e;
@@ -19,67 +43,125 @@ public class EventWrapper implements Map<String, Object> {
         return e;
     }
 
+    /**
+     * Writes any maps or lists that processors have changed back to the underlying event.
+     */
+    public void flush() {
+        if (dirty == null) {
+            return;
+        }
+        for (String key : dirty) {
+            // a map or list that was moved to another field may still report changes under the field it was read
+            // from, which must not bring that field back
+            if (converted.containsKey(key)) {
+                e.setField(key, unwrap(converted.get(key)));
+            }
+        }
+        dirty.clear();
+    }
+
+    /**
+     * Returns the top-level fields holding maps or lists that will be written back on {@link #flush()}.
+     */
+    @VisibleForTesting
+    Set<String> getDirtyFields() {
+        return dirty == null ? Collections.emptySet() : Collections.unmodifiableSet(dirty);
+    }
+
+    /**
+     * Returns a copy of all fields of the event that does not mark any of them as dirty, e.g., to record the document
+     * as it passes through a pipeline without affecting what is written back to the event.
+     */
+    Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        for (String key : keySet()) {
+            m.put(key, converted.containsKey(key) ? untracked(converted.get(key)) : e.getField(key));
+        }
+        return m;
+    }
+
     @Override
     public int size() {
-        return e.getData().size();
+        return keySet().size();
     }
 
     @Override
     public boolean isEmpty() {
-        return e.getData().isEmpty();
+        return keySet().isEmpty();
     }
 
     @Override
     public boolean containsKey(final Object key) {
-        return e.getUnconvertedField((String)key) != null;
+        if (isHidden(key)) {
+            return false;
+        }
+        return converted.containsKey(key) || e.includes((String)key);
     }
 
     @Override
     public boolean containsValue(final Object value) {
-        return e.getData().containsValue(value);
+        return values().contains(value);
     }
 
     @Override
     public Object get(final Object key) {
-        return e.getField((String)key);
+        if (isHidden(key)) {
+            return null;
+        }
+        if (converted.containsKey(key)) {
+            return converted.get(key);
+        }
+        String field = (String)key;
+        Object value = track(e.getField(field), () -> markDirty(field));
+        if (value != null) {
+            converted.put(field, value);
+        }
+        return value;
     }
 
     @Override
     public Object put(final String key, final Object value) {
-        //if (deepCopy) {
-        //    return setDeepCopy(key, value);
-        //} else if (value instanceof Map) {
-        //    deepCopy();
-        //    return setDeepCopy(key, value);
-        //} else {
-            e.setField(key, value);
-            return value;
-        //}
+        if (isContainer(value)) {
+            // the ingest document may continue to mutate the map or list after it has been put, so the
+            // value is only written to the event on flush, and it is tracked under its new field in case it was
+            // read from another one, e.g., by a rename
+            markDirty(key);
+            return converted.put(key, track(unwrap(value), () -> markDirty(key)));
+        }
+        e.setField(key, value);
+        if (dirty != null) {
+            dirty.remove(key);
+        }
+        // previous values are only returned if they were already converted to avoid converting them just to be
+        // discarded
+        return converted.put(key, value);
     }
 
-    /*
-    private void deepCopy() {
-        deepCopy = true;
+    private void markDirty(final String key) {
+        if (dirty == null) {
+            dirty = new HashSet<>();
+        }
+        dirty.add(key);
     }
 
-    @VisibleForTesting
-    boolean isDeepCopy() {
-        return deepCopy;
-    }
-
-    private Object setDeepCopy(final String key, final Object value) {
-        return null;
-    }
-    */
-
     @Override
     public Object remove(final Object key) {
-        return e.remove((String)key);
+        if (isHidden(key)) {
+            return null;
+        }
+        Object previous = converted.containsKey(key) ? converted.remove(key) : null;
+        if (dirty != null) {
+            dirty.remove(key);
+        }
+        Object removed = e.remove((String)key);
+        return previous != null ? previous : Javafier.deep(removed);
     }
 
     @Override
     public void putAll(final Map<? extends String, ?> m) {
-        throw new UnsupportedOperationException();
+        for (Map.Entry<? extends String, ?> entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
     }
 
     @Override
@@ -89,16 +171,260 @@ public class EventWrapper implements Map<String, Object> {
 
     @Override
     public Set<String> keySet() {
-        return e.getData().keySet();
+        Set<String> keys = new LinkedHashSet<>(e.getData().keySet());
+        keys.remove(Event.TIMESTAMP);
+        keys.addAll(converted.keySet());
+        return keys;
     }
 
     @Override
     public Collection<Object> values() {
-        return e.getData().values();
+        return toMap().values();
     }
 
     @Override
     public Set<Entry<String, Object>> entrySet() {
-        return e.getData().entrySet();
+        return toMap().entrySet();
+    }
+
+    /**
+     * Materializes all fields of the event. Only used when a processor iterates over the whole document, e.g.,
+     * to build a template model or a script context.
+     */
+    private Map<String, Object> toMap() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        for (String key : keySet()) {
+            m.put(key, get(key));
+        }
+        return m;
+    }
+
+    private static boolean isHidden(final Object key) {
+        // the event timestamp is exposed through the ingest metadata rather than the source
+        return Event.TIMESTAMP.equals(key);
+    }
+
+    private static boolean isContainer(final Object value) {
+        return value instanceof Map || value instanceof List;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object track(final Object value, final Runnable onChange) {
+        if (value instanceof Map) {
+            return new TrackingMap((Map<String, Object>)value, onChange);
+        }
+        if (value instanceof List) {
+            return new TrackingList((List<Object>)value, onChange);
+        }
+        return value;
+    }
+
+    private static Object unwrap(final Object value) {
+        if (value instanceof TrackingMap) {
+            return ((TrackingMap)value).delegate();
+        }
+        if (value instanceof TrackingList) {
+            return ((TrackingList)value).delegate();
+        }
+        return value;
+    }
+
+    /**
+     * Returns a deep copy of the supplied value that reads the maps and lists it holds without reporting changes.
+     */
+    @SuppressWarnings("unchecked")
+    private static Object untracked(final Object value) {
+        Object unwrapped = unwrap(value);
+        if (unwrapped instanceof Map) {
+            Map<String, Object> copy = new LinkedHashMap<>();
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>)unwrapped).entrySet()) {
+                copy.put(entry.getKey(), untracked(entry.getValue()));
+            }
+            return copy;
+        }
+        if (unwrapped instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            for (Object element : (List<Object>)unwrapped) {
+                copy.add(untracked(element));
+            }
+            return copy;
+        }
+        return unwrapped;
+    }
+
+    /**
+     * A map that reports any change to itself or to the maps and lists nested within it. Access through views and
+     * iterators is treated as a change since they may be used to mutate the map.
+     */
+    private static final class TrackingMap extends ForwardingMap<String, Object> {
+
+        private final Map<String, Object> delegate;
+        private final Runnable onChange;
+
+        TrackingMap(Map<String, Object> delegate, Runnable onChange) {
+            this.delegate = delegate;
+            this.onChange = onChange;
+        }
+
+        @Override
+        protected Map<String, Object> delegate() {
+            return delegate;
+        }
+
+        @Override
+        public Object get(Object key) {
+            return track(delegate.get(key), onChange);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            onChange.run();
+            return delegate.put(key, value);
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ?> map) {
+            onChange.run();
+            delegate.putAll(map);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            onChange.run();
+            return delegate.remove(key);
+        }
+
+        @Override
+        public void clear() {
+            onChange.run();
+            delegate.clear();
+        }
+
+        @Override
+        public Set<String> keySet() {
+            onChange.run();
+            return delegate.keySet();
+        }
+
+        @Override
+        public Collection<Object> values() {
+            onChange.run();
+            return delegate.values();
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            onChange.run();
+            return delegate.entrySet();
+        }
+    }
+
+    /**
+     * A list that reports any change to itself or to the maps and lists nested within it. Access through views and
+     * iterators is treated as a change since they may be used to mutate the list.
+     */
+    private static final class TrackingList extends ForwardingList<Object> {
+
+        private final List<Object> delegate;
+        private final Runnable onChange;
+
+        TrackingList(List<Object> delegate, Runnable onChange) {
+            this.delegate = delegate;
+            this.onChange = onChange;
+        }
+
+        @Override
+        protected List<Object> delegate() {
+            return delegate;
+        }
+
+        @Override
+        public Object get(int index) {
+            return track(delegate.get(index), onChange);
+        }
+
+        @Override
+        public boolean add(Object element) {
+            onChange.run();
+            return delegate.add(element);
+        }
+
+        @Override
+        public void add(int index, Object element) {
+            onChange.run();
+            delegate.add(index, element);
+        }
+
+        @Override
+        public boolean addAll(Collection<?> collection) {
+            onChange.run();
+            return delegate.addAll(collection);
+        }
+
+        @Override
+        public boolean addAll(int index, Collection<?> elements) {
+            onChange.run();
+            return delegate.addAll(index, elements);
+        }
+
+        @Override
+        public Object set(int index, Object element) {
+            onChange.run();
+            return delegate.set(index, element);
+        }
+
+        @Override
+        public Object remove(int index) {
+            onChange.run();
+            return delegate.remove(index);
+        }
+
+        @Override
+        public boolean remove(Object object) {
+            onChange.run();
+            return delegate.remove(object);
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> collection) {
+            onChange.run();
+            return delegate.removeAll(collection);
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> collection) {
+            onChange.run();
+            return delegate.retainAll(collection);
+        }
+
+        @Override
+        public void clear() {
+            onChange.run();
+            delegate.clear();
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            onChange.run();
+            return delegate.iterator();
+        }
+
+        @Override
+        public ListIterator<Object> listIterator() {
+            onChange.run();
+            return delegate.listIterator();
+        }
+
+        @Override
+        public ListIterator<Object> listIterator(int index) {
+            onChange.run();
+            return delegate.listIterator(index);
+        }
+
+        @Override
+        public List<Object> subList(int fromIndex, int toIndex) {
+            onChange.run();
+            return delegate.subList(fromIndex, toIndex);
+        }
     }
 }
@@ -0,0 +1,133 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.DeadLetterQueueWriter;
+import co.elastic.logstash.api.Event;
+import co.elastic.logstash.api.Plugin;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ElasticsearchException;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides what happens to an event that fails in an ingest pipeline without an {@code on_failure} handler.
+ */
+class FailureHandler {
+
+    static final String FAILURE_METADATA = "[@metadata][_ingest]";
+    static final String ON_FAILURE_MESSAGE = "on_failure_message";
+    static final String ON_FAILURE_PROCESSOR_TYPE = "on_failure_processor_type";
+    static final String ON_FAILURE_PROCESSOR_TAG = "on_failure_processor_tag";
+
+    private static final String PROCESSOR_TYPE_HEADER = "processor_type";
+    private static final String PROCESSOR_TAG_HEADER = "processor_tag";
+
+    enum Mode {
+        /** Fails the whole batch, which stops the Logstash pipeline. */
+        THROW,
+        /** Passes the original event on with a failure tag and the failure details in its metadata. */
+        TAG,
+        /** Writes the original event to the dead letter queue and removes it from the pipeline. */
+        DLQ,
+        /** Drops the event. */
+        DROP;
+
+        static Mode from(String mode) {
+            try {
+                return valueOf(mode.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException(String.format("Unknown failure mode '%s'", mode), ex);
+            }
+        }
+    }
+
+    private final Mode mode;
+    private final String failureTag;
+    private final DeadLetterQueueWriter dlqWriter;
+    private final Plugin plugin;
+    private final Logger logger;
+
+    FailureHandler(Mode mode, String failureTag, DeadLetterQueueWriter dlqWriter, Plugin plugin, Logger logger) {
+        if (mode == Mode.DLQ && dlqWriter == null) {
+            logger.warn("The dead letter queue is not enabled, events that fail will be tagged with '{}' instead",
+                    failureTag);
+            mode = Mode.TAG;
+        }
+        this.mode = mode;
+        this.failureTag = failureTag;
+        this.dlqWriter = dlqWriter;
+        this.plugin = plugin;
+        this.logger = logger;
+    }
+
+    /**
+     * Handles the failure of the supplied event and returns true if the event should continue through the Logstash
+     * pipeline or false if it should be dropped.
+     */
+    boolean handle(Event evt, Exception failure) {
+        if (mode == Mode.THROW) {
+            throw new IllegalStateException(failure);
+        }
+        // failures are expected in these modes, e.g. when grok patterns do not match, so no stack traces are logged
+        if (logger.isDebugEnabled()) {
+            logger.debug("Ingest pipeline failed for event: {}", failure.toString());
+        }
+        switch (mode) {
+            case DROP:
+                return false;
+            case DLQ:
+                try {
+                    dlqWriter.writeEntry(evt, plugin, describe(failure));
+                    return false;
+                } catch (IOException ex) {
+                    logger.error("Unable to write event to the dead letter queue, tagging it instead", ex);
+                }
+                // fall through
+            default:
+                evt.setField(FAILURE_METADATA, failureMetadata(failure));
+                ((org.logstash.Event)evt).tag(failureTag);
+                return true;
+        }
+    }
+
+    private static Map<String, Object> failureMetadata(Exception failure) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(ON_FAILURE_MESSAGE, message(failure));
+        String type = header(failure, PROCESSOR_TYPE_HEADER);
+        if (type != null) {
+            metadata.put(ON_FAILURE_PROCESSOR_TYPE, type);
+        }
+        String tag = header(failure, PROCESSOR_TAG_HEADER);
+        if (tag != null) {
+            metadata.put(ON_FAILURE_PROCESSOR_TAG, tag);
+        }
+        return metadata;
+    }
+
+    private static String describe(Exception failure) {
+        String type = header(failure, PROCESSOR_TYPE_HEADER);
+        return type == null
+                ? message(failure)
+                : String.format("%s processor failed: %s", type, message(failure));
+    }
+
+    static String message(Exception failure) {
+        // matches the _ingest.on_failure_message set by ingest node for on_failure handlers
+        return failure instanceof ElasticsearchException
+                ? ((ElasticsearchException)failure).getRootCause().getMessage()
+                : failure.getMessage();
+    }
+
+    private static String header(Exception failure, String name) {
+        if (failure instanceof ElasticsearchException) {
+            List<String> values = ((ElasticsearchException)failure).getHeader(name);
+            if (values != null && !values.isEmpty()) {
+                return values.get(0);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,52 @@
+package org.logstashplugins;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.ingest.Processor;
+import org.elasticsearch.ingest.geoip.GeoIpProcessor;
+import org.elasticsearch.ingest.geoip.IngestGeoIpPlugin;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The MaxMind databases in a directory, loaded by the geoip plugin. A single instance is shared by all filters in the
+ * JVM that use the same database directory so that the databases are read and their readers built only once. The
+ * databases are loaded with parameters derived from the directory alone rather than from those of the first filter to
+ * use them, so that every filter gets the same databases whatever its other settings. Logstash does not close
+ * filters, so the readers remain open for the life of the JVM.
+ */
+class GeoIpDatabases {
+
+    private static final Map<Path, GeoIpDatabases> SHARED = new HashMap<>();
+
+    private final Processor.Factory factory;
+
+    private GeoIpDatabases(Path directory) {
+        Settings settings = Settings.builder()
+                .put("path.home", "/")
+                .put("ingest.geoip.database_path", directory.toString())
+                .build();
+        Processor.Parameters parameters =
+                new Processor.Parameters(new Environment(settings, null), null, null, null, null, null, null);
+        this.factory = new IngestGeoIpPlugin().getProcessors(parameters).get(GeoIpProcessor.TYPE);
+    }
+
+    /**
+     * Returns the databases in the supplied directory, loading them if no other filter has done so.
+     */
+    static GeoIpDatabases get(Path directory) {
+        Path key = directory.toAbsolutePath().normalize();
+        synchronized (SHARED) {
+            return SHARED.computeIfAbsent(key, GeoIpDatabases::new);
+        }
+    }
+
+    /**
+     * Returns the factory for {@code geoip} processors that look up addresses in these databases.
+     */
+    Processor.Factory getFactory() {
+        return factory;
+    }
+}
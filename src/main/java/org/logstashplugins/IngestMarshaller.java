@@ -8,6 +8,7 @@ import org.logstash.Valuefier;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 class IngestMarshaller {
@@ -17,6 +18,10 @@ class IngestMarshaller {
     private IngestMarshaller() {
     }
 
+    /**
+     * Copies all fields of a document created with {@link #toDocument(Event)} to the supplied event. The filter runs
+     * pipelines against lazy documents instead, so this eager conversion only serves as a reference for them.
+     */
     static void toEvent(IngestDocument document, Event e) {
         Map<String, Object> source = document.getSourceAndMetadata();
         Map<String, Object> metadata = document.getIngestMetadata();
@@ -46,6 +51,55 @@ class IngestMarshaller {
         }
     }
 
+    /**
+     * Writes the changes made to a document created with {@link #toLazyDocument(org.logstash.Event)} back to the
+     * event that it wraps and returns that event. As with {@link #toEvent(IngestDocument, Event)}, ingest metadata
+     * other than the timestamp is written to top-level fields and replaces the event's {@code @metadata}, whether the
+     * event is the original or a copy.
+     */
+    static Event writeBack(IngestDocument document) {
+        EventWrapper source = (EventWrapper)document.getSourceAndMetadata();
+        org.logstash.Event e = source.getEvent();
+        source.flush();
+
+        IngestMetadata metadata = (IngestMetadata)document.getIngestMetadata();
+        metadata.writeTimestamp();
+        Map<String, Object> entries = metadata.withoutTimestamp();
+        e.getMetadata().clear();
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            e.setField(entry.getKey(), Valuefier.convert(entry.getValue()));
+        }
+        return e;
+    }
+
+    /**
+     * Moves the {@code @metadata} of an event that has been processed by an {@link EventPipeline} to its top-level
+     * fields, as {@link #writeBack(IngestDocument)} does, and returns the event.
+     */
+    static Event writeBackNative(org.logstash.Event e) {
+        if (e.getMetadata().isEmpty()) {
+            return e;
+        }
+        Map<String, Object> entries = new LinkedHashMap<>(e.getMetadata());
+        e.getMetadata().clear();
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            e.setField(entry.getKey(), entry.getValue());
+        }
+        return e;
+    }
+
+    /**
+     * Creates an ingest document that reads and writes the fields of the supplied event lazily rather than copying
+     * them. Changes are applied to the event itself and {@link #writeBack(IngestDocument)} must be called once the
+     * document has been processed.
+     */
+    static IngestDocument toLazyDocument(org.logstash.Event e) {
+        return new IngestDocument(new EventWrapper(e), new IngestMetadata(e));
+    }
+
+    /**
+     * Creates an ingest document with a copy of every field of the supplied event. See {@link #toEvent}.
+     */
     static IngestDocument toDocument(Event e) {
         Map<String, Object> data = new HashMap<>();
         Map<String, Object> metadata = new HashMap<>();
@@ -0,0 +1,174 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.Event;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The ingest metadata of an {@link org.elasticsearch.ingest.IngestDocument} backed by a Logstash event. The
+ * {@code timestamp} entry is converted from the event's timestamp and other entries from the event's
+ * {@code @metadata} only when a processor reads them, and the timestamp is written back only if a processor has
+ * changed it, so that events without {@code @metadata} whose pipelines never touch {@code _ingest} incur no
+ * conversions.
+ */
+class IngestMetadata extends AbstractMap<String, Object> {
+
+    private static final Object REMOVED = new Object();
+
+    private final Event event;
+    private Object timestamp;
+    private boolean timestampMaterialized;
+    private boolean timestampChanged;
+    private boolean timestampRemoved;
+    // entries that have been read, written or removed, keyed by name
+    private Map<String, Object> entries;
+
+    IngestMetadata(Event event) {
+        this.event = event;
+    }
+
+    /**
+     * Sets the timestamp of the event that backs this metadata if a processor has changed it.
+     */
+    void writeTimestamp() {
+        if (timestampChanged && timestamp != null) {
+            event.setEventTimestamp(((ZonedDateTime)timestamp).toInstant());
+        }
+    }
+
+    /**
+     * Returns every entry other than the timestamp, converting all of the event's {@code @metadata}.
+     */
+    Map<String, Object> withoutTimestamp() {
+        if (entries == null && event.getMetadata().isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, Object> m = new LinkedHashMap<>();
+        for (String key : event.getMetadata().keySet()) {
+            Object value = get(key);
+            if (value != null) {
+                m.put(key, value);
+            }
+        }
+        if (entries != null) {
+            for (Map.Entry<String, Object> entry : entries.entrySet()) {
+                if (entry.getValue() != REMOVED) {
+                    m.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return m;
+    }
+
+    @VisibleForTesting
+    boolean isTimestampMaterialized() {
+        return timestampMaterialized;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (IngestMarshaller.INGEST_TIMESTAMP.equals(key)) {
+            return timestamp();
+        }
+        if (!(key instanceof String)) {
+            return null;
+        }
+        if (entries != null && entries.containsKey(key)) {
+            Object value = entries.get(key);
+            return value == REMOVED ? null : value;
+        }
+        Object value = event.getField(metadataField((String)key));
+        if (value != null) {
+            entries().put((String)key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (IngestMarshaller.INGEST_TIMESTAMP.equals(key)) {
+            return !timestampRemoved;
+        }
+        if (!(key instanceof String)) {
+            return false;
+        }
+        if (entries != null && entries.containsKey(key)) {
+            return entries.get(key) != REMOVED;
+        }
+        return event.includes(metadataField((String)key));
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        if (IngestMarshaller.INGEST_TIMESTAMP.equals(key)) {
+            Object previous = timestamp();
+            timestamp = value;
+            timestampChanged = true;
+            timestampRemoved = false;
+            return previous;
+        }
+        Object previous = entries().put(key, value);
+        return previous == REMOVED ? null : previous;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        if (IngestMarshaller.INGEST_TIMESTAMP.equals(key)) {
+            Object previous = put(IngestMarshaller.INGEST_TIMESTAMP, null);
+            timestampRemoved = true;
+            return previous;
+        }
+        if (!(key instanceof String)) {
+            return null;
+        }
+        Object previous = get(key);
+        entries().put((String)key, REMOVED);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns a read-only snapshot of every entry, so that removing through it fails rather than silently changing
+     * nothing. Only used when a processor iterates over the whole metadata.
+     */
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        if (!timestampRemoved) {
+            m.put(IngestMarshaller.INGEST_TIMESTAMP, timestamp());
+        }
+        m.putAll(withoutTimestamp());
+        return Collections.unmodifiableMap(m).entrySet();
+    }
+
+    private Object timestamp() {
+        if (!timestampMaterialized) {
+            timestamp = event.getEventTimestamp().atZone(ZoneOffset.UTC);
+            timestampMaterialized = true;
+        }
+        return timestamp;
+    }
+
+    private Map<String, Object> entries() {
+        if (entries == null) {
+            entries = new HashMap<>();
+        }
+        return entries;
+    }
+
+    static String metadataField(String key) {
+        return "[" + org.logstash.Event.METADATA + "][" + key + "]";
+    }
+}
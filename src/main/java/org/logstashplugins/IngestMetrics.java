@@ -0,0 +1,273 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.NamespacedMetric;
+import com.google.common.annotations.VisibleForTesting;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.elasticsearch.ingest.CompoundProcessor;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Pipeline;
+import org.elasticsearch.ingest.Processor;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-pipeline and per-processor counters and timings for a filter. Counters are updated on the hot path without
+ * locking and periodically published to the Logstash metrics API, which makes them available in the node stats API
+ * under the id of the filter.
+ */
+class IngestMetrics {
+
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final String GROK_TYPE = "grok";
+    private static final String UNKNOWN_PIPELINE = "_unknown";
+    private static final String GROK_INTERRUPTED_MESSAGE = "grok pattern matching was interrupted";
+
+    private final Map<String, PipelineMetrics> pipelines = new ConcurrentHashMap<>();
+    private final ThreadLocal<Construction> pipelineUnderConstruction = new ThreadLocal<>();
+    private final Map<String, NamespacedMetric> namespaces = new HashMap<>();
+    private final AtomicLong lastReport = new AtomicLong(System.nanoTime());
+    final LongAdder watchdogInterrupts = new LongAdder();
+    final CachingProcessor.CacheCounters geoIpCache = new CachingProcessor.CacheCounters();
+    final CachingProcessor.CacheCounters userAgentCache = new CachingProcessor.CacheCounters();
+
+    /**
+     * Wraps each of the supplied factories so that the processors they create record their invocations.
+     */
+    Map<String, Processor.Factory> instrument(Map<String, Processor.Factory> factories) {
+        Map<String, Processor.Factory> instrumented = new HashMap<>();
+        for (Map.Entry<String, Processor.Factory> entry : factories.entrySet()) {
+            instrumented.put(entry.getKey(), new InstrumentedProcessor.Factory(entry.getValue(), this));
+        }
+        return Collections.unmodifiableMap(instrumented);
+    }
+
+    /**
+     * Creates a pipeline with the supplied function and wraps it so that it records the documents that pass through
+     * it. Processors created while the pipeline is being created are attributed to it.
+     */
+    Pipeline createPipeline(String pipelineId, Callable<Pipeline> pipelineFactory) throws Exception {
+        PipelineMetrics metrics = getPipelineMetrics(pipelineId);
+        Construction previous = pipelineUnderConstruction.get();
+        Construction construction = new Construction(metrics);
+        pipelineUnderConstruction.set(construction);
+        Pipeline pipeline;
+        try {
+            pipeline = pipelineFactory.call();
+        } finally {
+            pipelineUnderConstruction.set(previous);
+        }
+        // the processors of a rebuilt pipeline replace those of the pipeline it replaces only once it is built
+        metrics.processors = construction.processors;
+        CompoundProcessor processor = pipeline.getCompoundProcessor();
+        return new Pipeline(pipeline.getId(), pipeline.getDescription(), pipeline.getVersion(),
+                new InstrumentedCompoundProcessor(processor, metrics));
+    }
+
+    PipelineMetrics getPipelineMetrics(String pipelineId) {
+        return pipelines.computeIfAbsent(pipelineId, PipelineMetrics::new);
+    }
+
+    @VisibleForTesting
+    Set<String> getPipelineIds() {
+        return Collections.unmodifiableSet(pipelines.keySet());
+    }
+
+    ProcessorMetrics newProcessorMetrics(String type, String tag) {
+        Construction construction = pipelineUnderConstruction.get();
+        if (construction == null) {
+            return getPipelineMetrics(UNKNOWN_PIPELINE).processors.computeIfAbsent(tag != null ? tag : type,
+                    n -> new ProcessorMetrics(n, type, this));
+        }
+        return construction.newProcessorMetrics(type, tag, this);
+    }
+
+    /**
+     * Drops the metrics of the pipelines other than the supplied ones, e.g., those removed from the definitions.
+     */
+    void retainPipelines(Set<String> pipelineIds) {
+        pipelines.keySet().removeIf(id -> !id.equals(UNKNOWN_PIPELINE) && !pipelineIds.contains(id));
+    }
+
+    /**
+     * Publishes the current values to the supplied metric if at least a second has passed since they were last
+     * published.
+     */
+    void reportIfDue(NamespacedMetric metric) {
+        if (metric == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long last = lastReport.get();
+        if (now - last >= REPORT_INTERVAL_NANOS && lastReport.compareAndSet(last, now)) {
+            report(metric);
+        }
+    }
+
+    synchronized void report(NamespacedMetric metric) {
+        metric.gauge("grok_watchdog_interrupts", watchdogInterrupts.sum());
+        metric.gauge("geoip_cache_hits", geoIpCache.hits.sum());
+        metric.gauge("geoip_cache_misses", geoIpCache.misses.sum());
+        metric.gauge("user_agent_cache_hits", userAgentCache.hits.sum());
+        metric.gauge("user_agent_cache_misses", userAgentCache.misses.sum());
+        for (PipelineMetrics p : pipelines.values()) {
+            NamespacedMetric pipelineMetric = namespace(metric, "pipelines", p.name);
+            pipelineMetric.gauge("in", p.in.sum());
+            pipelineMetric.gauge("out", p.out.sum());
+            pipelineMetric.gauge("dropped", p.dropped.sum());
+            pipelineMetric.gauge("failed", p.failed.sum());
+            pipelineMetric.gauge("time_in_millis", TimeUnit.NANOSECONDS.toMillis(p.nanos.sum()));
+            for (ProcessorMetrics m : p.processors.values()) {
+                NamespacedMetric processorMetric = namespace(metric, "pipelines", p.name, "processors", m.name);
+                processorMetric.gauge("type", m.type);
+                processorMetric.gauge("invocations", m.invocations.sum());
+                processorMetric.gauge("failures", m.failures.sum());
+                if (GROK_TYPE.equals(m.type)) {
+                    processorMetric.gauge("watchdog_interrupts", m.watchdogInterrupts.sum());
+                }
+                processorMetric.gauge("time_in_millis", TimeUnit.NANOSECONDS.toMillis(m.nanos.sum()));
+                Histogram latency = m.latency.copy();
+                processorMetric.gauge("latency_p50_micros", latency.getValueAtPercentile(50));
+                processorMetric.gauge("latency_p99_micros", latency.getValueAtPercentile(99));
+                processorMetric.gauge("latency_max_micros", latency.getMaxValue());
+            }
+        }
+    }
+
+    private NamespacedMetric namespace(NamespacedMetric metric, String... names) {
+        return namespaces.computeIfAbsent(String.join("\u0000", names), k -> metric.namespace(names));
+    }
+
+    static class PipelineMetrics {
+
+        private final String name;
+        private volatile Map<String, ProcessorMetrics> processors = new ConcurrentHashMap<>();
+        final LongAdder in = new LongAdder();
+        final LongAdder out = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+
+        PipelineMetrics(String name) {
+            this.name = name;
+        }
+
+        ProcessorMetrics getProcessor(String name) {
+            return processors.get(name);
+        }
+    }
+
+    /**
+     * The processors created while a pipeline is being built. Processors without a tag are identified by their type
+     * and their position within the pipeline, so the same definition always yields the same names. Processors of a
+     * rebuilt pipeline with the same name and type as one of the pipeline it replaces continue its metrics.
+     */
+    private static final class Construction {
+
+        private final PipelineMetrics pipeline;
+        private final Map<String, ProcessorMetrics> processors = new ConcurrentHashMap<>();
+        private int position;
+
+        Construction(PipelineMetrics pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        ProcessorMetrics newProcessorMetrics(String type, String tag, IngestMetrics parent) {
+            position++;
+            String name = tag != null ? tag : type + "_" + position;
+            ProcessorMetrics previous = pipeline.processors.get(name);
+            return processors.computeIfAbsent(name, n -> previous != null && previous.type.equals(type)
+                    ? previous
+                    : new ProcessorMetrics(n, type, parent));
+        }
+    }
+
+    static class ProcessorMetrics {
+
+        private final String name;
+        private final String type;
+        private final IngestMetrics parent;
+        final LongAdder invocations = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder watchdogInterrupts = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        // latencies in microseconds, auto-resizing so that no value is out of range
+        final Histogram latency = new ConcurrentHistogram(2);
+
+        ProcessorMetrics(String name, String type, IngestMetrics parent) {
+            this.name = name;
+            this.type = type;
+            this.parent = parent;
+        }
+
+        /**
+         * Records an invocation that took the supplied time and failed with the supplied exception, if not null.
+         */
+        void record(long elapsedNanos, Exception failure) {
+            invocations.increment();
+            if (failure != null) {
+                failures.increment();
+                if (isWatchdogInterrupt(failure)) {
+                    watchdogInterrupts.increment();
+                    parent.watchdogInterrupts.increment();
+                }
+            }
+            nanos.add(elapsedNanos);
+            latency.recordValue(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+        }
+
+        private boolean isWatchdogInterrupt(Exception failure) {
+            if (!GROK_TYPE.equals(type)) {
+                return false;
+            }
+            for (Throwable t = failure; t != null; t = t.getCause()) {
+                if (t.getMessage() != null && t.getMessage().contains(GROK_INTERRUPTED_MESSAGE)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The top-level processor of an instrumented pipeline, recording the documents that enter the pipeline and
+     * whether they leave it, are dropped or fail.
+     */
+    private static class InstrumentedCompoundProcessor extends CompoundProcessor {
+
+        private final PipelineMetrics metrics;
+
+        InstrumentedCompoundProcessor(CompoundProcessor delegate, PipelineMetrics metrics) {
+            super(delegate.isIgnoreFailure(), delegate.getProcessors(), delegate.getOnFailureProcessors());
+            this.metrics = metrics;
+        }
+
+        @Override
+        public IngestDocument execute(IngestDocument ingestDocument) throws Exception {
+            long start = System.nanoTime();
+            metrics.in.increment();
+            try {
+                IngestDocument result = super.execute(ingestDocument);
+                if (result == null) {
+                    metrics.dropped.increment();
+                } else {
+                    metrics.out.increment();
+                }
+                return result;
+            } catch (Exception e) {
+                metrics.failed.increment();
+                throw e;
+            } finally {
+                metrics.nanos.add(System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -1,19 +1,31 @@
 package org.logstashplugins;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 public class IngestNodePipeline {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final JsonFactory YAML_FACTORY = new YAMLFactory();
+    private static final String DEFINITION_FILES = "*.{json,yml,yaml}";
+    private static final String PROCESSORS = "processors";
+
     private String name = null;
     private List<IngestProcessor> processors;
 
@@ -22,48 +34,108 @@ public class IngestNodePipeline {
         this.processors = processors;
     }
 
+    /**
+     * Reads the pipeline definitions in the supplied stream in a single streaming pass. Processor parameters are read
+     * straight into the maps, lists and scalars that ingest node builds pipelines from, so no intermediate JSON tree
+     * or string is held for any pipeline.
+     */
     public static List<IngestNodePipeline> createFrom(InputStream i) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(i)) {
+            return createFrom(parser);
+        }
+    }
+
+    /**
+     * Reads the pipeline definitions in the supplied file or, if it is a directory, in each of its JSON and YAML
+     * files in the order of their names. Files ending in {@code .yml} or {@code .yaml} are read as YAML and all
+     * other files as JSON. A pipeline may be defined in only one file.
+     */
+    public static List<IngestNodePipeline> createFrom(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return createFrom(path, new ArrayList<>(), new HashMap<>());
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, DEFINITION_FILES)) {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files);
         List<IngestNodePipeline> pipelines = new ArrayList<>();
-        ObjectMapper m = new ObjectMapper();
-        JsonNode root = m.readTree(i);
+        Map<String, Path> sources = new HashMap<>();
+        for (Path file : files) {
+            createFrom(file, pipelines, sources);
+        }
+        return pipelines;
+    }
 
-        Iterator<Map.Entry<String, JsonNode>> iterator = root.fields();
-        while (iterator.hasNext()) {
-            Map.Entry<String, JsonNode> entry = iterator.next();
-            pipelines.add(new IngestNodePipeline(entry.getKey(),
-                    IngestProcessor.createFrom(entry.getValue().get("processors"))));
+    private static List<IngestNodePipeline> createFrom(Path file, List<IngestNodePipeline> pipelines,
+                                                       Map<String, Path> sources) throws IOException {
+        String filename = file.getFileName().toString();
+        JsonFactory factory = filename.endsWith(".yml") || filename.endsWith(".yaml") ? YAML_FACTORY : JSON_FACTORY;
+        try (InputStream i = Files.newInputStream(file); JsonParser parser = factory.createParser(i)) {
+            for (IngestNodePipeline pipeline : createFrom(parser)) {
+                Path previous = sources.putIfAbsent(pipeline.getName(), file);
+                if (previous != null && !previous.equals(file)) {
+                    throw new IllegalStateException(String.format("Pipeline '%s' is defined in both '%s' and '%s'",
+                            pipeline.getName(), previous, file));
+                }
+                pipelines.add(pipeline);
+            }
         }
+        return pipelines;
+    }
 
+    static List<IngestNodePipeline> createFrom(JsonParser parser) throws IOException {
+        List<IngestNodePipeline> pipelines = new ArrayList<>();
+        expect(parser, parser.nextToken(), JsonToken.START_OBJECT, "pipeline definitions");
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String pipelineName = parser.getCurrentName();
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT, "pipeline '" + pipelineName + "'");
+            List<IngestProcessor> processors = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if (PROCESSORS.equals(field)) {
+                    processors = IngestProcessor.createFrom(parser, pipelineName);
+                } else {
+                    // other settings of a pipeline, such as its description, are not used
+                    parser.skipChildren();
+                }
+            }
+            if (processors == null) {
+                throw new JsonParseException(parser,
+                        String.format("Pipeline '%s' has no '%s'", pipelineName, PROCESSORS));
+            }
+            pipelines.add(new IngestNodePipeline(pipelineName, processors));
+        }
         return pipelines;
     }
 
     /**
-     * Converts this pipeline into the string JSON format that the ES ingest node expects
-     * in the form of:
+     * Converts this pipeline into the configuration that the ES ingest node builds pipelines from, in the form of:
      *
      * { "processors" : [ {"proc1" : {...}}, {"proc2" : {...}} ] }
      *
+     * The configuration shares this pipeline's processor parameters and may only be read. Use
+     * {@link #newPipelineConfig()} for a configuration to build a pipeline from.
      */
-    public String toIngestNodeFormat() {
-        ObjectMapper m = new ObjectMapper();
-        ObjectNode root = m.createObjectNode();
-
-        ArrayNode processors = m.createArrayNode();
-        for (IngestProcessor p : this.processors) {
-            ObjectNode processorNode = m.createObjectNode();
-            processorNode.set(p.getName(), p.getParameters());
-            processors.add(processorNode);
-        }
-        root.set("processors", processors);
-
-        String jsonString = null;
-        try {
-            jsonString = m.writerWithDefaultPrettyPrinter().writeValueAsString(root);
-        } catch (JsonProcessingException e) {
-            // these should be pre-validated so that the JSON is always valid
-            throw new IllegalStateException(e);
-        }
-        return jsonString;
+    public Map<String, Object> toIngestNodeFormat() {
+        List<Object> processorConfigs = new ArrayList<>(processors.size());
+        for (IngestProcessor p : processors) {
+            processorConfigs.add(Collections.singletonMap(p.getName(), Collections.unmodifiableMap(p.getParameters())));
+        }
+        return Collections.singletonMap(PROCESSORS, Collections.unmodifiableList(processorConfigs));
+    }
+
+    /**
+     * Returns a new copy of {@link #toIngestNodeFormat()}. Building a pipeline consumes its configuration, so each
+     * pipeline must be built from its own copy.
+     */
+    Map<String, Object> newPipelineConfig() {
+        return DeepCopy.of(toIngestNodeFormat());
     }
 
     public String getName() {
@@ -74,27 +146,45 @@ public class IngestNodePipeline {
         return processors;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        IngestNodePipeline that = (IngestNodePipeline)o;
+        return Objects.equals(name, that.name) && Objects.equals(processors, that.processors);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, processors);
+    }
+
     static class IngestProcessor {
         private String name = null;
-        private JsonNode parameters;
+        private Object parameters;
 
-        IngestProcessor(String name, JsonNode paramters) {
+        IngestProcessor(String name, Object paramters) {
             this.name = name;
             this.parameters = paramters;
         }
 
-        static List<IngestProcessor> createFrom(JsonNode n) {
+        static List<IngestProcessor> createFrom(JsonParser parser, String pipelineName) throws IOException {
             List<IngestProcessor> processors = new ArrayList<>();
-
-            for (int k = 0; k < n.size(); k++) {
-                JsonNode processorNode = n.get(k);
-                Iterator<Map.Entry<String, JsonNode>> iterator = processorNode.fields();
-                while (iterator.hasNext()) {
-                    Map.Entry<String, JsonNode> entry = iterator.next();
-                    processors.add(new IngestProcessor(entry.getKey(), entry.getValue()));
+            expect(parser, parser.getCurrentToken(), JsonToken.START_ARRAY,
+                    "processors of pipeline '" + pipelineName + "'");
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT,
+                        "processor of pipeline '" + pipelineName + "'");
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String processorName = parser.getCurrentName();
+                    parser.nextToken();
+                    processors.add(new IngestProcessor(processorName, readValue(parser)));
                 }
             }
-
             return processors;
         }
 
@@ -102,7 +192,7 @@ public class IngestNodePipeline {
             return name;
         }
 
-        public JsonNode getParameters() {
+        public Object getParameters() {
             return parameters;
         }
 
@@ -110,9 +200,68 @@ public class IngestNodePipeline {
             this.name = name;
         }
 
-        public void setParameters(JsonNode parameters) {
+        public void setParameters(Object parameters) {
             this.parameters = parameters;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            IngestProcessor that = (IngestProcessor)o;
+            return Objects.equals(name, that.name) && Objects.equals(parameters, that.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, parameters);
+        }
     }
-}
 
+    /**
+     * Reads the value at the current token of the supplied parser as a map, list or scalar.
+     */
+    private static Object readValue(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case START_OBJECT:
+                Map<String, Object> map = new LinkedHashMap<>();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    map.put(field, readValue(parser));
+                }
+                return map;
+            case START_ARRAY:
+                List<Object> list = new ArrayList<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    list.add(readValue(parser));
+                }
+                return list;
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getNumberValue();
+            case VALUE_TRUE:
+                return true;
+            case VALUE_FALSE:
+                return false;
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new JsonParseException(parser, String.format("Unexpected token %s", parser.getCurrentToken()));
+        }
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected, String what)
+            throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException(parser, String.format("Expected %s to be %s but found %s", what,
+                    expected == JsonToken.START_OBJECT ? "an object" : "an array", actual));
+        }
+    }
+}
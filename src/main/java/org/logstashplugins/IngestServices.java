@@ -0,0 +1,77 @@
+package org.logstashplugins;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.painless.PainlessScriptEngine;
+import org.elasticsearch.painless.spi.Whitelist;
+import org.elasticsearch.script.IngestConditionalScript;
+import org.elasticsearch.script.IngestScript;
+import org.elasticsearch.script.ScriptContext;
+import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.script.ScriptModule;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.script.mustache.MustacheScriptEngine;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The thread pool and script service used by ingest processors. These are expensive to create, so a single instance
+ * is shared by all pipelines of all filters in the JVM that use the same settings. Logstash does not close filters,
+ * so instances live as long as the JVM.
+ */
+class IngestServices {
+
+    private static final Map<Settings, IngestServices> SHARED = new HashMap<>();
+
+    private final ThreadPool threadPool;
+    private final ScriptService scriptService;
+
+    private IngestServices(Settings settings) {
+        this.threadPool = new ThreadPool(settings);
+        this.scriptService = createScriptService(settings);
+    }
+
+    /**
+     * Returns the services for the supplied settings, creating them if no other filter has done so.
+     */
+    static IngestServices get(Settings settings) {
+        synchronized (SHARED) {
+            return SHARED.computeIfAbsent(settings, IngestServices::new);
+        }
+    }
+
+    ScriptService getScriptService() {
+        return scriptService;
+    }
+
+    /**
+     * Relative time used by the grok watchdog. The thread pool's cached clock only advances every 200ms, which is too
+     * coarse for sub-second watchdog settings, so the precise clock is used instead.
+     */
+    long relativeTimeInMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    ScheduledFuture<?> schedule(long delay, Runnable command) {
+        return threadPool.schedule(TimeValue.timeValueMillis(delay), ThreadPool.Names.GENERIC, command);
+    }
+
+    private static ScriptService createScriptService(Settings settings) {
+        Map<String, ScriptEngine> engines = new HashMap<>();
+        engines.put(PainlessScriptEngine.NAME, new PainlessScriptEngine(settings, scriptContexts()));
+        engines.put(MustacheScriptEngine.NAME, new MustacheScriptEngine());
+        return new CachingScriptService(settings, engines, ScriptModule.CORE_CONTEXTS);
+    }
+
+    private static Map<ScriptContext<?>, List<Whitelist>> scriptContexts() {
+        Map<ScriptContext<?>, List<Whitelist>> contexts = new HashMap<>();
+        contexts.put(IngestScript.CONTEXT, Whitelist.BASE_WHITELISTS);
+        contexts.put(IngestConditionalScript.CONTEXT, Whitelist.BASE_WHITELISTS);
+        return contexts;
+    }
+}
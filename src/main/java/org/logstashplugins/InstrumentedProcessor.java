@@ -0,0 +1,84 @@
+package org.logstashplugins;
+
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+
+import java.util.Map;
+
+/**
+ * Records the invocations, failures and latency of the processor it wraps, and its result if the document is being
+ * profiled.
+ */
+public class InstrumentedProcessor implements Processor {
+
+    private final Processor delegate;
+    private final IngestMetrics.ProcessorMetrics metrics;
+
+    private InstrumentedProcessor(Processor delegate, IngestMetrics.ProcessorMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public IngestDocument execute(IngestDocument ingestDocument) throws Exception {
+        long start = System.nanoTime();
+        try {
+            IngestDocument result = delegate.execute(ingestDocument);
+            long elapsed = System.nanoTime() - start;
+            metrics.record(elapsed, null);
+            PipelineProfiler.record(delegate, result, elapsed, null);
+            return result;
+        } catch (Exception e) {
+            long elapsed = System.nanoTime() - start;
+            metrics.record(elapsed, e);
+            PipelineProfiler.record(delegate, ingestDocument, elapsed, e);
+            throw e;
+        }
+    }
+
+    public Processor getDelegate() {
+        return delegate;
+    }
+
+    IngestMetrics.ProcessorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the processor wrapped by the supplied processor if it is instrumented or the processor itself if not.
+     */
+    public static Processor unwrap(Processor processor) {
+        return processor instanceof InstrumentedProcessor
+                ? ((InstrumentedProcessor)processor).getDelegate()
+                : processor;
+    }
+
+    @Override
+    public String getType() {
+        return delegate.getType();
+    }
+
+    @Override
+    public String getTag() {
+        return delegate.getTag();
+    }
+
+    public static final class Factory implements Processor.Factory {
+
+        private final Processor.Factory delegate;
+        private final IngestMetrics metrics;
+
+        Factory(Processor.Factory delegate, IngestMetrics metrics) {
+            this.delegate = delegate;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Processor create(Map<String, Processor.Factory> registry, String processorTag,
+                                Map<String, Object> config) throws Exception {
+            Processor processor = delegate.create(registry, processorTag, config);
+            return new InstrumentedProcessor(processor,
+                    metrics.newProcessorMetrics(processor.getType(), processor.getTag()));
+        }
+    }
+}
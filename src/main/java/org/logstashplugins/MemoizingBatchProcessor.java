@@ -0,0 +1,142 @@
+package org.logstashplugins;
+
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Batch version of a processor such as {@code date} that reads a string from its {@code field} and writes a value
+ * derived only from that string and its settings to its {@code target_field}. Within a batch, the wrapped processor
+ * runs once for each distinct value of the field, against a scratch document, and its result or failure is applied
+ * to every document with that value. Documents whose field is not a string are run through the wrapped processor.
+ */
+public class MemoizingBatchProcessor implements BatchProcessor {
+
+    private static final String DATE_TYPE = "date";
+    private static final String TEMPLATE_START = "{{";
+
+    private final Processor delegate;
+    private final String field;
+    private final String targetField;
+
+    private MemoizingBatchProcessor(Processor delegate, String field, String targetField) {
+        this.delegate = delegate;
+        this.field = field;
+        this.targetField = targetField;
+    }
+
+    @Override
+    public IngestDocument execute(IngestDocument ingestDocument) throws Exception {
+        return delegate.execute(ingestDocument);
+    }
+
+    @Override
+    public void executeBatch(IngestDocument[] documents, Exception[] failures) {
+        Map<String, Result> results = new HashMap<>();
+        for (int k = 0; k < documents.length; k++) {
+            try {
+                Object value = documents[k].getFieldValue(field, Object.class, true);
+                if (!(value instanceof String)) {
+                    documents[k] = delegate.execute(documents[k]);
+                    continue;
+                }
+                Result result = results.computeIfAbsent((String)value, this::compute);
+                if (result.failure != null) {
+                    failures[k] = result.failure;
+                } else {
+                    documents[k].setFieldValue(targetField, result.value);
+                }
+            } catch (Exception e) {
+                failures[k] = e;
+            }
+        }
+    }
+
+    private Result compute(String value) {
+        IngestDocument scratch = new IngestDocument(new HashMap<>(), new HashMap<>());
+        try {
+            scratch.setFieldValue(field, value);
+            delegate.execute(scratch);
+            return new Result(scratch.getFieldValue(targetField, Object.class), null);
+        } catch (Exception e) {
+            return new Result(null, e);
+        }
+    }
+
+    public Processor getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String getType() {
+        return delegate.getType();
+    }
+
+    @Override
+    public String getTag() {
+        return delegate.getTag();
+    }
+
+    /**
+     * Replaces the {@code date} factory among the supplied factories with one that creates batch versions of the
+     * processors whose result is determined by their field alone.
+     */
+    static Map<String, Processor.Factory> override(Map<String, Processor.Factory> factories) {
+        Map<String, Processor.Factory> overridden = new HashMap<>(factories);
+        Processor.Factory dateFactory = factories.get(DATE_TYPE);
+        if (dateFactory != null) {
+            // the time zone and locale of the date processor are templates that may read other fields
+            overridden.put(DATE_TYPE, new Factory(dateFactory, "@timestamp", "timezone", "locale"));
+        }
+        return overridden;
+    }
+
+    /**
+     * The value written to the target field for a value of the field, or the failure of the wrapped processor.
+     */
+    private static final class Result {
+
+        private final Object value;
+        private final Exception failure;
+
+        Result(Object value, Exception failure) {
+            this.value = value;
+            this.failure = failure;
+        }
+    }
+
+    public static final class Factory implements Processor.Factory {
+
+        private final Processor.Factory delegate;
+        private final String defaultTargetField;
+        private final String[] templateSettings;
+
+        /**
+         * Creates a factory for batch versions of the processors created by the supplied factory. Processors with a
+         * template in any of the supplied settings read more than their field and are created as they are.
+         */
+        Factory(Processor.Factory delegate, String defaultTargetField, String... templateSettings) {
+            this.delegate = delegate;
+            this.defaultTargetField = defaultTargetField;
+            this.templateSettings = templateSettings;
+        }
+
+        @Override
+        public Processor create(Map<String, Processor.Factory> registry, String processorTag,
+                                Map<String, Object> config) throws Exception {
+            // the wrapped factory validates the configuration and consumes it, so it is read from a copy
+            Map<String, Object> copy = new HashMap<>(config);
+            Processor processor = delegate.create(registry, processorTag, config);
+            for (String setting : templateSettings) {
+                Object value = copy.get(setting);
+                if (value instanceof String && ((String)value).contains(TEMPLATE_START)) {
+                    return processor;
+                }
+            }
+            return new MemoizingBatchProcessor(processor, (String)copy.get("field"),
+                    (String)copy.getOrDefault("target_field", defaultTargetField));
+        }
+    }
+}
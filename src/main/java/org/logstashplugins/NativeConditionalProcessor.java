@@ -0,0 +1,258 @@
+package org.logstashplugins;
+
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+import org.elasticsearch.script.IngestConditionalScript;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.script.ScriptType;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the processor it wraps only if the processor's {@code if} condition holds, evaluating as much of the condition
+ * as possible natively and running the Painless script only when the native evaluation cannot decide it.
+ *
+ * Conditions are moved from {@code if} to {@link #CONDITION_KEY} by {@link #rewrite(Map)} before a pipeline is
+ * created so that Elasticsearch does not wrap the processor in its own conditional processor, which compiles and runs
+ * the script for every document.
+ */
+public class NativeConditionalProcessor implements Processor {
+
+    static final String CONDITION_KEY = "_native_if";
+
+    private static final String IF_KEY = "if";
+    private static final String ON_FAILURE_KEY = "on_failure";
+    private static final String IGNORE_FAILURE_KEY = "ignore_failure";
+    private static final String FOREACH_TYPE = "foreach";
+    private static final String FOREACH_PROCESSOR_KEY = "processor";
+
+    private final ProcessorCondition condition;
+    private final IngestConditionalScript.Factory script;
+    private final Processor processor;
+
+    private NativeConditionalProcessor(ProcessorCondition condition, IngestConditionalScript.Factory script,
+                                       Processor processor) {
+        this.condition = condition;
+        this.script = script;
+        this.processor = processor;
+    }
+
+    @Override
+    public IngestDocument execute(IngestDocument ingestDocument) throws Exception {
+        Map<String, Object> ctx = ingestDocument.getSourceAndMetadata();
+        ProcessorCondition.Result result = condition.evaluate(ctx);
+        boolean matches = result == ProcessorCondition.Result.UNKNOWN
+                ? script.newInstance(Collections.emptyMap()).execute(new ReadOnlyMap(ctx))
+                : result == ProcessorCondition.Result.TRUE;
+        return matches ? processor.execute(ingestDocument) : ingestDocument;
+    }
+
+    public Processor getProcessor() {
+        return processor;
+    }
+
+    ProcessorCondition getCondition() {
+        return condition;
+    }
+
+    @Override
+    public String getType() {
+        return processor.getType();
+    }
+
+    @Override
+    public String getTag() {
+        return processor.getTag();
+    }
+
+    /**
+     * Moves each {@code if} condition in the supplied pipeline configuration that can be at least partially evaluated
+     * natively to {@link #CONDITION_KEY}, including those of processors in {@code on_failure} blocks and
+     * {@code foreach} processors.
+     *
+     * Conditions on processors with {@code on_failure} or {@code ignore_failure} are moved only if they never need
+     * the script, since Elasticsearch evaluates conditions outside of a processor's failure handling whereas the
+     * wrapped processor runs within it.
+     */
+    static void rewrite(Map<String, Object> pipelineConfig) {
+        rewriteProcessors(pipelineConfig.get("processors"));
+        rewriteProcessors(pipelineConfig.get(ON_FAILURE_KEY));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void rewriteProcessors(Object processors) {
+        if (!(processors instanceof List)) {
+            return;
+        }
+        for (Object processor : (List<Object>)processors) {
+            if (processor instanceof Map) {
+                for (Map.Entry<String, Object> entry : ((Map<String, Object>)processor).entrySet()) {
+                    if (entry.getValue() instanceof Map) {
+                        rewriteProcessor(entry.getKey(), (Map<String, Object>)entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    private static void rewriteProcessor(String type, Map<String, Object> config) {
+        rewriteProcessors(config.get(ON_FAILURE_KEY));
+        if (FOREACH_TYPE.equals(type)) {
+            rewriteProcessors(Collections.singletonList(config.get(FOREACH_PROCESSOR_KEY)));
+        }
+
+        if (!(config.get(IF_KEY) instanceof String)) {
+            return;
+        }
+        ProcessorCondition condition = ProcessorCondition.analyze((String)config.get(IF_KEY));
+        if (condition == null) {
+            return;
+        }
+        boolean handlesFailures = config.containsKey(ON_FAILURE_KEY) || config.containsKey(IGNORE_FAILURE_KEY);
+        if (handlesFailures && condition.needsScript()) {
+            return;
+        }
+        config.put(CONDITION_KEY, config.remove(IF_KEY));
+    }
+
+    /**
+     * Wraps each of the supplied factories so that the processors they create are conditional on any condition moved
+     * to {@link #CONDITION_KEY} in their configuration.
+     */
+    static Map<String, Processor.Factory> wrap(Map<String, Processor.Factory> factories, ScriptService scriptService) {
+        Map<String, Processor.Factory> wrapped = new HashMap<>();
+        for (Map.Entry<String, Processor.Factory> entry : factories.entrySet()) {
+            wrapped.put(entry.getKey(), new Factory(entry.getValue(), scriptService));
+        }
+        return Collections.unmodifiableMap(wrapped);
+    }
+
+    public static final class Factory implements Processor.Factory {
+
+        private final Processor.Factory delegate;
+        private final ScriptService scriptService;
+
+        Factory(Processor.Factory delegate, ScriptService scriptService) {
+            this.delegate = delegate;
+            this.scriptService = scriptService;
+        }
+
+        @Override
+        public Processor create(Map<String, Processor.Factory> registry, String processorTag,
+                                Map<String, Object> config) throws Exception {
+            Object source = config.remove(CONDITION_KEY);
+            Processor processor = delegate.create(registry, processorTag, config);
+            if (source == null) {
+                return processor;
+            }
+
+            ProcessorCondition condition = ProcessorCondition.analyze((String)source);
+            IngestConditionalScript.Factory script = null;
+            if (condition.needsScript()) {
+                Script conditionScript = new Script(ScriptType.INLINE, Script.DEFAULT_SCRIPT_LANG, (String)source,
+                        Collections.emptyMap());
+                script = scriptService.compile(conditionScript, IngestConditionalScript.CONTEXT);
+            }
+            return new NativeConditionalProcessor(condition, script, processor);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object readOnly(Object value) {
+        if (value instanceof Map) {
+            return new ReadOnlyMap((Map<String, Object>)value);
+        }
+        if (value instanceof List) {
+            return new ReadOnlyList((List<Object>)value);
+        }
+        return value;
+    }
+
+    /**
+     * A read-only view of a document's fields that also wraps the maps and lists nested within it, as ingest node
+     * does for the documents that conditions run against, so that conditions cannot change the document.
+     */
+    private static final class ReadOnlyMap extends AbstractMap<String, Object> {
+
+        private final Map<String, Object> delegate;
+
+        ReadOnlyMap(Map<String, Object> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Object get(Object key) {
+            return readOnly(delegate.get(key));
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return delegate.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return delegate.size();
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    Iterator<Entry<String, Object>> entries = delegate.entrySet().iterator();
+                    return new Iterator<Entry<String, Object>>() {
+
+                        @Override
+                        public boolean hasNext() {
+                            return entries.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, Object> next() {
+                            Entry<String, Object> entry = entries.next();
+                            return new SimpleImmutableEntry<>(entry.getKey(), readOnly(entry.getValue()));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return delegate.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * A read-only view of a list within a document that also wraps the maps and lists nested within it.
+     */
+    private static final class ReadOnlyList extends AbstractList<Object> {
+
+        private final List<Object> delegate;
+
+        ReadOnlyList(List<Object> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Object get(int index) {
+            return readOnly(delegate.get(index));
+        }
+
+        @Override
+        public int size() {
+            return delegate.size();
+        }
+    }
+}
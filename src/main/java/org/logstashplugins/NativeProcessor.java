@@ -0,0 +1,544 @@
+package org.logstashplugins;
+
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+import org.logstash.Event;
+import org.logstash.FieldReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A processor that can also run directly against a Logstash event. Within ingest documents it runs the Elasticsearch
+ * processor it wraps, but pipelines made only of native processors are run by {@link EventPipeline} against the
+ * event itself, which avoids creating an ingest document and parsing field paths on every call.
+ *
+ * Processors are native only if their configuration has no templates and their fields have no equivalent in the
+ * event other than a plain field, i.e., no {@code _ingest} fields, {@code @timestamp} or {@code @metadata}.
+ */
+public class NativeProcessor implements Processor {
+
+    static final String SET_TYPE = "set";
+    static final String RENAME_TYPE = "rename";
+    static final String REMOVE_TYPE = "remove";
+    static final String LOWERCASE_TYPE = "lowercase";
+    static final String UPPERCASE_TYPE = "uppercase";
+    static final String CONVERT_TYPE = "convert";
+    static final String APPEND_TYPE = "append";
+
+    private static final String[] TYPES =
+            {SET_TYPE, RENAME_TYPE, REMOVE_TYPE, LOWERCASE_TYPE, UPPERCASE_TYPE, CONVERT_TYPE, APPEND_TYPE};
+
+    /**
+     * A processor that runs against a Logstash event.
+     */
+    interface EventProcessor {
+        void execute(Event event) throws Exception;
+    }
+
+    private final Processor delegate;
+    private final EventProcessor eventProcessor;
+
+    private NativeProcessor(Processor delegate, EventProcessor eventProcessor) {
+        this.delegate = delegate;
+        this.eventProcessor = eventProcessor;
+    }
+
+    @Override
+    public IngestDocument execute(IngestDocument ingestDocument) throws Exception {
+        return delegate.execute(ingestDocument);
+    }
+
+    EventProcessor getEventProcessor() {
+        return eventProcessor;
+    }
+
+    @Override
+    public String getType() {
+        return delegate.getType();
+    }
+
+    @Override
+    public String getTag() {
+        return delegate.getTag();
+    }
+
+    /**
+     * Returns the supplied factories with those of the processors that have native implementations wrapped so that
+     * they create native processors where their configuration allows.
+     */
+    static Map<String, Processor.Factory> override(Map<String, Processor.Factory> factories) {
+        Map<String, Processor.Factory> overridden = new HashMap<>(factories);
+        for (String type : TYPES) {
+            Processor.Factory factory = factories.get(type);
+            if (factory != null) {
+                overridden.put(type, new Factory(type, factory));
+            }
+        }
+        return overridden;
+    }
+
+    public static final class Factory implements Processor.Factory {
+
+        private final String type;
+        private final Processor.Factory delegate;
+
+        Factory(String type, Processor.Factory delegate) {
+            this.type = type;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Processor create(Map<String, Processor.Factory> registry, String processorTag,
+                                Map<String, Object> config) throws Exception {
+            // the Elasticsearch factory validates the configuration and consumes it, so it is read from a copy
+            Map<String, Object> settings = new HashMap<>(config);
+            Processor processor = delegate.create(registry, processorTag, config);
+            EventProcessor eventProcessor = createEventProcessor(type, settings);
+            return eventProcessor == null ? processor : new NativeProcessor(processor, eventProcessor);
+        }
+    }
+
+    /**
+     * Creates the native implementation of the supplied processor type from a configuration that has been validated
+     * by the Elasticsearch factory, returning null if the configuration cannot be run natively.
+     */
+    private static EventProcessor createEventProcessor(String type, Map<String, Object> config) {
+        boolean ignoreMissing = readBoolean(config, "ignore_missing", false);
+        switch (type) {
+            case SET_TYPE: {
+                FieldPath field = FieldPath.parse(config.get("field"));
+                Object value = config.get("value");
+                if (field == null || hasTemplate(value)) {
+                    return null;
+                }
+                return new SetProcessor(field, value, readBoolean(config, "override", true));
+            }
+            case RENAME_TYPE: {
+                FieldPath field = FieldPath.parse(config.get("field"));
+                FieldPath target = FieldPath.parse(config.get("target_field"));
+                return field == null || target == null ? null : new RenameProcessor(field, target, ignoreMissing);
+            }
+            case REMOVE_TYPE: {
+                Object fieldSetting = config.get("field");
+                List<?> names = fieldSetting instanceof List
+                        ? (List<?>)fieldSetting
+                        : Collections.singletonList(fieldSetting);
+                List<FieldPath> fields = new ArrayList<>(names.size());
+                for (Object name : names) {
+                    FieldPath field = FieldPath.parse(name);
+                    if (field == null) {
+                        return null;
+                    }
+                    fields.add(field);
+                }
+                return new RemoveProcessor(fields, ignoreMissing);
+            }
+            case LOWERCASE_TYPE:
+            case UPPERCASE_TYPE: {
+                FieldPath field = FieldPath.parse(config.get("field"));
+                FieldPath target = config.containsKey("target_field")
+                        ? FieldPath.parse(config.get("target_field"))
+                        : field;
+                if (field == null || target == null) {
+                    return null;
+                }
+                return new CaseProcessor(field, target, ignoreMissing, type.equals(UPPERCASE_TYPE));
+            }
+            case CONVERT_TYPE: {
+                FieldPath field = FieldPath.parse(config.get("field"));
+                FieldPath target = config.containsKey("target_field")
+                        ? FieldPath.parse(config.get("target_field"))
+                        : field;
+                ConvertType convertType = ConvertType.from(config.get("type"));
+                if (field == null || target == null || convertType == null) {
+                    return null;
+                }
+                return new ConvertProcessor(field, target, convertType, ignoreMissing);
+            }
+            case APPEND_TYPE: {
+                FieldPath field = FieldPath.parse(config.get("field"));
+                Object value = config.get("value");
+                return field == null || hasTemplate(value) ? null : new AppendProcessor(field, value);
+            }
+            default:
+                return null;
+        }
+    }
+
+    private static boolean readBoolean(Map<String, Object> config, String key, boolean defaultValue) {
+        Object value = config.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.toString());
+    }
+
+    /**
+     * Returns whether the supplied value contains a Mustache template, which Elasticsearch renders for each document.
+     */
+    private static boolean hasTemplate(Object value) {
+        if (value instanceof String) {
+            return ((String)value).contains("{{");
+        }
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+                if (hasTemplate(entry.getKey()) || hasTemplate(entry.getValue())) {
+                    return true;
+                }
+            }
+        }
+        if (value instanceof List) {
+            for (Object element : (List<?>)value) {
+                if (hasTemplate(element)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * An ingest node field path such as {@code a.b.c}, pre-parsed into the equivalent Logstash field reference.
+     */
+    static final class FieldPath {
+
+        private static final String SOURCE_PREFIX = "_source.";
+
+        private final String path;
+        private final String leaf;
+        private final FieldReference reference;
+
+        private FieldPath(String path, String leaf, FieldReference reference) {
+            this.path = path;
+            this.leaf = leaf;
+            this.reference = reference;
+        }
+
+        /**
+         * Parses the supplied path, returning null if it is not a plain path to a field of the event.
+         */
+        static FieldPath parse(Object value) {
+            if (!(value instanceof String) || hasTemplate(value)) {
+                return null;
+            }
+            String path = (String)value;
+            String relative = path.startsWith(SOURCE_PREFIX) ? path.substring(SOURCE_PREFIX.length()) : path;
+            String[] names = relative.split("\\.", -1);
+            if (names[0].equals(IngestDocument.INGEST_KEY) || names[0].equals(Event.TIMESTAMP)
+                    || names[0].equals(Event.METADATA)) {
+                return null;
+            }
+            StringBuilder reference = new StringBuilder();
+            for (String name : names) {
+                if (name.isEmpty() || name.indexOf('[') >= 0 || name.indexOf(']') >= 0) {
+                    return null;
+                }
+                reference.append('[').append(name).append(']');
+            }
+            return new FieldPath(path, names[names.length - 1], FieldReference.from(reference.toString()));
+        }
+
+        boolean isPresent(Event event) {
+            return event.includes(reference);
+        }
+
+        Object get(Event event) {
+            return event.getField(reference);
+        }
+
+        void set(Event event, Object value) {
+            event.setField(reference, value);
+        }
+
+        Object remove(Event event) {
+            return event.remove(reference);
+        }
+
+        IllegalArgumentException notPresent() {
+            return new IllegalArgumentException(
+                    String.format("field [%s] not present as part of path [%s]", leaf, path));
+        }
+
+        @Override
+        public String toString() {
+            return path;
+        }
+    }
+
+    private static final class SetProcessor implements EventProcessor {
+
+        private final FieldPath field;
+        private final Object value;
+        private final boolean override;
+
+        SetProcessor(FieldPath field, Object value, boolean override) {
+            this.field = field;
+            this.value = value;
+            this.override = override;
+        }
+
+        @Override
+        public void execute(Event event) {
+            if (override || field.get(event) == null) {
+                field.set(event, value);
+            }
+        }
+    }
+
+    private static final class RenameProcessor implements EventProcessor {
+
+        private final FieldPath field;
+        private final FieldPath target;
+        private final boolean ignoreMissing;
+
+        RenameProcessor(FieldPath field, FieldPath target, boolean ignoreMissing) {
+            this.field = field;
+            this.target = target;
+            this.ignoreMissing = ignoreMissing;
+        }
+
+        @Override
+        public void execute(Event event) {
+            if (!field.isPresent(event)) {
+                if (ignoreMissing) {
+                    return;
+                }
+                throw new IllegalArgumentException(String.format("field [%s] doesn't exist", field));
+            }
+            if (target.isPresent(event)) {
+                throw new IllegalArgumentException(String.format("field [%s] already exists", target));
+            }
+            // the value is moved as it is stored in the event rather than converted
+            Object value = event.getUnconvertedField(field.reference);
+            field.remove(event);
+            try {
+                target.set(event, value);
+            } catch (RuntimeException ex) {
+                // as in ingest node, the field is put back if the target cannot be set
+                field.set(event, value);
+                throw ex;
+            }
+        }
+    }
+
+    private static final class RemoveProcessor implements EventProcessor {
+
+        private final List<FieldPath> fields;
+        private final boolean ignoreMissing;
+
+        RemoveProcessor(List<FieldPath> fields, boolean ignoreMissing) {
+            this.fields = fields;
+            this.ignoreMissing = ignoreMissing;
+        }
+
+        @Override
+        public void execute(Event event) {
+            for (FieldPath field : fields) {
+                if (field.isPresent(event)) {
+                    field.remove(event);
+                } else if (!ignoreMissing) {
+                    throw field.notPresent();
+                }
+            }
+        }
+    }
+
+    private static final class CaseProcessor implements EventProcessor {
+
+        private final FieldPath field;
+        private final FieldPath target;
+        private final boolean ignoreMissing;
+        private final boolean upper;
+
+        CaseProcessor(FieldPath field, FieldPath target, boolean ignoreMissing, boolean upper) {
+            this.field = field;
+            this.target = target;
+            this.ignoreMissing = ignoreMissing;
+            this.upper = upper;
+        }
+
+        @Override
+        public void execute(Event event) {
+            if (!field.isPresent(event) && !ignoreMissing) {
+                throw field.notPresent();
+            }
+            Object value = field.get(event);
+            if (value == null) {
+                if (ignoreMissing) {
+                    return;
+                }
+                throw new IllegalArgumentException(String.format("field [%s] is null, cannot process it.", field));
+            }
+            if (!(value instanceof String)) {
+                throw new IllegalArgumentException(String.format("field [%s] of type [%s] cannot be cast to [%s]",
+                        field, value.getClass().getName(), String.class.getName()));
+            }
+            String s = (String)value;
+            target.set(event, upper ? s.toUpperCase(Locale.ROOT) : s.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private enum ConvertType {
+        INTEGER {
+            @Override
+            Object convert(Object value) {
+                try {
+                    String s = value.toString();
+                    // as in ingest node, only hexadecimal values are decoded so that zero-padded values stay decimal
+                    return isHex(s) ? Integer.decode(s) : Integer.parseInt(s);
+                } catch (NumberFormatException ex) {
+                    throw unableToConvert(value, ex);
+                }
+            }
+        },
+        LONG {
+            @Override
+            Object convert(Object value) {
+                try {
+                    String s = value.toString();
+                    return isHex(s) ? Long.decode(s) : Long.parseLong(s);
+                } catch (NumberFormatException ex) {
+                    throw unableToConvert(value, ex);
+                }
+            }
+        },
+        FLOAT {
+            @Override
+            Object convert(Object value) {
+                try {
+                    return Float.parseFloat(value.toString());
+                } catch (NumberFormatException ex) {
+                    throw unableToConvert(value, ex);
+                }
+            }
+        },
+        DOUBLE {
+            @Override
+            Object convert(Object value) {
+                try {
+                    return Double.parseDouble(value.toString());
+                } catch (NumberFormatException ex) {
+                    throw unableToConvert(value, ex);
+                }
+            }
+        },
+        BOOLEAN {
+            @Override
+            Object convert(Object value) {
+                if (value.toString().equalsIgnoreCase("true")) {
+                    return true;
+                }
+                if (value.toString().equalsIgnoreCase("false")) {
+                    return false;
+                }
+                throw new IllegalArgumentException(
+                        String.format("[%s] is not a boolean value, cannot convert to boolean", value));
+            }
+        },
+        STRING {
+            @Override
+            Object convert(Object value) {
+                return value.toString();
+            }
+        };
+
+        abstract Object convert(Object value);
+
+        IllegalArgumentException unableToConvert(Object value, NumberFormatException cause) {
+            return new IllegalArgumentException(String.format("unable to convert [%s] to %s", value, this), cause);
+        }
+
+        static boolean isHex(String s) {
+            return s.startsWith("0x") || s.startsWith("-0x");
+        }
+
+        /**
+         * Returns the supplied type or null if it has no native implementation, e.g., {@code auto}.
+         */
+        static ConvertType from(Object type) {
+            for (ConvertType convertType : values()) {
+                if (convertType.toString().equalsIgnoreCase(String.valueOf(type))) {
+                    return convertType;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final class ConvertProcessor implements EventProcessor {
+
+        private final FieldPath field;
+        private final FieldPath target;
+        private final ConvertType type;
+        private final boolean ignoreMissing;
+
+        ConvertProcessor(FieldPath field, FieldPath target, ConvertType type, boolean ignoreMissing) {
+            this.field = field;
+            this.target = target;
+            this.type = type;
+            this.ignoreMissing = ignoreMissing;
+        }
+
+        @Override
+        public void execute(Event event) {
+            if (!field.isPresent(event) && !ignoreMissing) {
+                throw field.notPresent();
+            }
+            Object value = field.get(event);
+            if (value == null) {
+                if (ignoreMissing) {
+                    return;
+                }
+                throw new IllegalArgumentException(
+                        String.format("Field [%s] is null, cannot be converted to type [%s]", field, type));
+            }
+            if (value instanceof List) {
+                List<Object> converted = new ArrayList<>(((List<?>)value).size());
+                for (Object element : (List<?>)value) {
+                    converted.add(type.convert(element));
+                }
+                target.set(event, converted);
+            } else {
+                target.set(event, type.convert(value));
+            }
+        }
+    }
+
+    private static final class AppendProcessor implements EventProcessor {
+
+        private final FieldPath field;
+        private final Object value;
+
+        AppendProcessor(FieldPath field, Object value) {
+            this.field = field;
+            this.value = value;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void execute(Event event) {
+            List<Object> values = new ArrayList<>();
+            if (field.isPresent(event)) {
+                Object existing = field.get(event);
+                if (existing instanceof List) {
+                    values.addAll((List<Object>)existing);
+                } else {
+                    values.add(existing);
+                }
+            }
+            if (value instanceof List) {
+                values.addAll((List<Object>)value);
+            } else {
+                values.add(value);
+            }
+            field.set(event, values);
+        }
+    }
+}
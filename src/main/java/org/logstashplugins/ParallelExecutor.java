@@ -0,0 +1,125 @@
+package org.logstashplugins;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Applies a function to each element of a batch across a fixed pool of worker threads. The batch is split into
+ * contiguous chunks, one per worker, and the calling thread processes the last chunk itself. Results are returned in
+ * the same order as the input regardless of the order in which the chunks complete.
+ *
+ * Ingest pipelines and their processors are shared across threads in the same way they are shared across the write
+ * threads of an Elasticsearch node, so no per-thread pipeline state is required.
+ *
+ * Logstash does not close filters, so idle workers exit after {@link #WORKER_KEEP_ALIVE_SECONDS} and are started again
+ * by the next batch. The workers of a filter that has been replaced therefore exit rather than lingering.
+ */
+class ParallelExecutor implements Closeable {
+
+    static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
+    private final int parallelism;
+    private final ThreadPoolExecutor workers;
+
+    ParallelExecutor(String name, int parallelism) {
+        if (parallelism < 2) {
+            throw new IllegalArgumentException("Parallelism must be greater than one but was " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.workers = new ThreadPoolExecutor(parallelism - 1, parallelism - 1, WORKER_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new WorkerThreadFactory(name));
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    <T, R> List<R> map(List<T> items, Function<T, R> function) {
+        int chunks = Math.min(parallelism, items.size());
+        if (chunks < 2) {
+            List<R> results = new ArrayList<>(items.size());
+            for (T item : items) {
+                results.add(function.apply(item));
+            }
+            return results;
+        }
+
+        Object[] results = new Object[items.size()];
+        int chunkSize = (items.size() + chunks - 1) / chunks;
+        List<Future<?>> futures = new ArrayList<>(chunks - 1);
+        int start = 0;
+        for (int k = 0; k < chunks - 1; k++) {
+            final int from = start;
+            final int to = Math.min(from + chunkSize, items.size());
+            futures.add(workers.submit(() -> apply(items, function, results, from, to)));
+            start = to;
+        }
+
+        RuntimeException failure = null;
+        try {
+            apply(items, function, results, start, items.size());
+        } catch (RuntimeException ex) {
+            failure = ex;
+        }
+
+        // wait for every chunk so that no worker is still processing events from this batch once it has completed
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                if (failure == null) {
+                    failure = ex.getCause() instanceof RuntimeException
+                            ? (RuntimeException)ex.getCause()
+                            : new IllegalStateException(ex.getCause());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new IllegalStateException("Interrupted while waiting for batch to complete", ex);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<R> resultList = (List<R>)Arrays.asList(results);
+        return resultList;
+    }
+
+    private static <T, R> void apply(List<T> items, Function<T, R> function, Object[] results, int from, int to) {
+        for (int k = from; k < to; k++) {
+            results[k] = function.apply(items.get(k));
+        }
+    }
+
+    @Override
+    public void close() {
+        workers.shutdown();
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "[" + name + "]>ingest-worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
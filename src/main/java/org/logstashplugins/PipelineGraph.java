@@ -0,0 +1,142 @@
+package org.logstashplugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The graph of calls between ingest pipelines made through {@code pipeline} processors, including those nested in
+ * {@code on_failure} blocks and {@code foreach} processors.
+ */
+class PipelineGraph {
+
+    private static final String ON_FAILURE = "on_failure";
+    private static final String FOREACH = "foreach";
+    private static final String FOREACH_PROCESSOR = "processor";
+
+    private final Map<String, Set<String>> calls;
+
+    private PipelineGraph(Map<String, Set<String>> calls) {
+        this.calls = calls;
+    }
+
+    static PipelineGraph of(List<IngestNodePipeline> pipelines) {
+        Map<String, Set<String>> calls = new LinkedHashMap<>();
+        for (IngestNodePipeline p : pipelines) {
+            Set<String> callees = new LinkedHashSet<>();
+            for (IngestNodePipeline.IngestProcessor processor : p.getProcessors()) {
+                collectCalls(processor.getName(), processor.getParameters(), callees);
+            }
+            calls.put(p.getName(), callees);
+        }
+        return new PipelineGraph(calls);
+    }
+
+    /**
+     * Returns the names of the pipelines called directly by the named pipeline.
+     */
+    Set<String> getCalls(String pipelineName) {
+        Set<String> callees = calls.get(pipelineName);
+        return callees == null ? Collections.emptySet() : Collections.unmodifiableSet(callees);
+    }
+
+    /**
+     * Returns the name of the supplied pipeline along with the names of every pipeline that it calls, directly or
+     * indirectly. These are the only pipelines that can run when events enter the pipeline graph through it.
+     */
+    Set<String> reachableFrom(String pipelineName) {
+        Set<String> result = new LinkedHashSet<>();
+        List<String> pending = new ArrayList<>();
+        pending.add(pipelineName);
+        while (!pending.isEmpty()) {
+            String name = pending.remove(pending.size() - 1);
+            if (result.add(name)) {
+                pending.addAll(getCalls(name));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the supplied pipeline names along with the names of every pipeline that calls any of them, directly or
+     * indirectly.
+     */
+    Set<String> withCallers(Set<String> pipelineNames) {
+        Set<String> result = new LinkedHashSet<>(pipelineNames);
+        boolean added = true;
+        while (added) {
+            added = false;
+            for (Map.Entry<String, Set<String>> entry : calls.entrySet()) {
+                if (!result.contains(entry.getKey()) && !Collections.disjoint(entry.getValue(), result)) {
+                    result.add(entry.getKey());
+                    added = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Throws an {@link IllegalStateException} if any pipeline can call itself, directly or indirectly.
+     */
+    void validateAcyclic() {
+        Map<String, Boolean> visited = new HashMap<>();
+        for (String name : calls.keySet()) {
+            checkCycles(name, visited, new ArrayList<>());
+        }
+    }
+
+    private void checkCycles(String name, Map<String, Boolean> visited, List<String> path) {
+        // visited maps a pipeline to false while its callees are being checked and to true once they all have been
+        Boolean done = visited.get(name);
+        if (Boolean.TRUE.equals(done)) {
+            return;
+        }
+        path.add(name);
+        if (Boolean.FALSE.equals(done)) {
+            List<String> cycle = path.subList(path.indexOf(name), path.size());
+            throw new IllegalStateException(
+                    String.format("Cycle detected in pipeline definitions: %s", String.join(" -> ", cycle)));
+        }
+        visited.put(name, false);
+        for (String callee : getCalls(name)) {
+            checkCycles(callee, visited, path);
+        }
+        visited.put(name, true);
+        path.remove(path.size() - 1);
+    }
+
+    private static void collectCalls(String processorType, Object parameters, Set<String> callees) {
+        if (!(parameters instanceof Map)) {
+            return;
+        }
+        Map<?, ?> map = (Map<?, ?>)parameters;
+        if (PipelineProcessor.TYPE.equals(processorType)) {
+            Object name = map.get("name");
+            if (name instanceof String) {
+                callees.add((String)name);
+            }
+        }
+        collectCalls(map.get(ON_FAILURE), callees);
+        if (FOREACH.equals(processorType)) {
+            collectCalls(map.get(FOREACH_PROCESSOR), callees);
+        }
+    }
+
+    private static void collectCalls(Object processors, Set<String> callees) {
+        if (processors instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>)processors).entrySet()) {
+                collectCalls(String.valueOf(entry.getKey()), entry.getValue(), callees);
+            }
+        } else if (processors instanceof List) {
+            for (Object processor : (List<?>)processors) {
+                collectCalls(processor, callees);
+            }
+        }
+    }
+}
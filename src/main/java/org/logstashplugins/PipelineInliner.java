@@ -0,0 +1,73 @@
+package org.logstashplugins;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flattens unconditional calls to other pipelines into the processor lists of their callers so that a tree of nested
+ * pipelines runs as a single chain of processors without a {@code pipeline} processor and an extra pipeline execution
+ * for each call.
+ *
+ * Only {@code pipeline} processors that name a defined pipeline and have no parameters other than {@code name} and
+ * {@code tag} are inlined. Calls with an {@code if} condition, an {@code on_failure} block or {@code ignore_failure}
+ * behave differently from the called processors placed inline and are left as they are, as are calls nested within
+ * {@code on_failure} blocks or {@code foreach} processors.
+ */
+class PipelineInliner {
+
+    private PipelineInliner() {
+    }
+
+    /**
+     * Returns the supplied pipelines, keyed by name, with their inlinable pipeline calls replaced by the processors of
+     * the called pipelines. The pipelines must not contain cycles.
+     */
+    static Map<String, IngestNodePipeline> inline(Map<String, IngestNodePipeline> pipelines) {
+        Map<String, IngestNodePipeline> inlined = new LinkedHashMap<>();
+        for (String name : pipelines.keySet()) {
+            inline(name, pipelines, inlined);
+        }
+        return inlined;
+    }
+
+    private static IngestNodePipeline inline(String name, Map<String, IngestNodePipeline> pipelines,
+                                             Map<String, IngestNodePipeline> inlined) {
+        IngestNodePipeline result = inlined.get(name);
+        if (result != null) {
+            return result;
+        }
+
+        IngestNodePipeline pipeline = pipelines.get(name);
+        List<IngestNodePipeline.IngestProcessor> processors = new ArrayList<>();
+        boolean changed = false;
+        for (IngestNodePipeline.IngestProcessor processor : pipeline.getProcessors()) {
+            String callee = getInlinableCallee(processor, pipelines);
+            if (callee == null) {
+                processors.add(processor);
+            } else {
+                processors.addAll(inline(callee, pipelines, inlined).getProcessors());
+                changed = true;
+            }
+        }
+        result = changed ? new IngestNodePipeline(name, processors) : pipeline;
+        inlined.put(name, result);
+        return result;
+    }
+
+    private static String getInlinableCallee(IngestNodePipeline.IngestProcessor processor,
+                                             Map<String, IngestNodePipeline> pipelines) {
+        if (!PipelineProcessor.TYPE.equals(processor.getName()) || !(processor.getParameters() instanceof Map)) {
+            return null;
+        }
+        Map<?, ?> parameters = (Map<?, ?>)processor.getParameters();
+        for (Object parameter : parameters.keySet()) {
+            if (!parameter.equals("name") && !parameter.equals("tag")) {
+                return null;
+            }
+        }
+        Object name = parameters.get("name");
+        return name instanceof String && pipelines.containsKey(name) ? (String)name : null;
+    }
+}
@@ -6,6 +6,8 @@ import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.Pipeline;
 import org.elasticsearch.ingest.Processor;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 public class PipelineProcessor extends AbstractProcessor {
@@ -14,6 +16,7 @@ public class PipelineProcessor extends AbstractProcessor {
 
     private String pipelineName;
     private PipelineProvider pipelineProvider;
+    private Pipeline pipeline;
 
     private PipelineProcessor(String tag, String pipelineName, PipelineProvider pipelineProvider) {
         super(tag);
@@ -23,7 +26,10 @@ public class PipelineProcessor extends AbstractProcessor {
 
     @Override
     public IngestDocument execute(IngestDocument ingestDocument) throws Exception {
-        Pipeline pipeline = pipelineProvider.getPipelineByName(pipelineName);
+        Pipeline pipeline = this.pipeline;
+        if (pipeline == null) {
+            pipeline = pipelineProvider.getPipelineByName(pipelineName);
+        }
         if (pipeline == null) {
             throw new IllegalStateException(String.format("Could not find pipeline '%s'", pipelineName));
         }
@@ -31,6 +37,17 @@ public class PipelineProcessor extends AbstractProcessor {
         return pipeline.execute(ingestDocument);
     }
 
+    /**
+     * Resolves the called pipeline so that it does not need to be looked up for each document.
+     */
+    void bind(PipelineProvider provider) {
+        pipeline = provider.getPipelineByName(pipelineName);
+    }
+
+    public String getPipelineName() {
+        return pipelineName;
+    }
+
     @Override
     public String getType() {
         return TYPE;
@@ -39,6 +56,8 @@ public class PipelineProcessor extends AbstractProcessor {
     public static final class Factory implements Processor.Factory {
 
         private PipelineProvider pipelineProvider;
+        // pipelines are built on the thread that first references them, so each thread binds its own processors
+        private final ThreadLocal<List<PipelineProcessor>> unbound = ThreadLocal.withInitial(ArrayList::new);
 
         public Factory(PipelineProvider p) {
             this.pipelineProvider = p;
@@ -48,7 +67,30 @@ public class PipelineProcessor extends AbstractProcessor {
         public PipelineProcessor create(Map<String, Processor.Factory> registry, String processorTag,
                                         Map<String, Object> config) {
             String pipeline = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "name");
-            return new PipelineProcessor(processorTag, pipeline, pipelineProvider);
+            PipelineProcessor processor = new PipelineProcessor(processorTag, pipeline, pipelineProvider);
+            unbound.get().add(processor);
+            return processor;
+        }
+
+        /**
+         * Binds every processor created on the current thread since the last call to the pipeline it calls as
+         * resolved by the supplied provider. The provider may build the called pipelines, and with them further
+         * pipeline processors, which are bound by the nested call.
+         */
+        public void bindAll(PipelineProvider provider) {
+            List<PipelineProcessor> processors = new ArrayList<>(unbound.get());
+            unbound.get().clear();
+            for (PipelineProcessor processor : processors) {
+                processor.bind(provider);
+            }
+        }
+
+        /**
+         * Discards the processors created on the current thread since the last call to {@link #bindAll}, e.g., when
+         * the pipeline they belong to could not be built.
+         */
+        public void discardAll() {
+            unbound.get().clear();
         }
     }
 
@@ -0,0 +1,156 @@
+package org.logstashplugins;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Profiles a sample of the events that run through the filter's pipelines in the manner of ingest node's verbose
+ * {@code _simulate} API. Sampled events run through their pipeline as usual, but every processor that runs records
+ * its time and a snapshot of the document after it, or its failure. The profile is either returned to be added to
+ * the event's metadata or appended as a line of JSON to a profile file that is rolled over when it grows too large.
+ *
+ * The profile of the event being processed is held in a thread local that {@link InstrumentedProcessor}s consult,
+ * so events that are not sampled pay only for that lookup.
+ */
+class PipelineProfiler {
+
+    static final String PROFILE_METADATA = "[@metadata][_ingest_profile]";
+    static final long MAX_FILE_SIZE = 10 * 1024 * 1024;
+
+    private static final ThreadLocal<Profile> CURRENT = new ThreadLocal<>();
+    private static final String ROLLED_FILE_SUFFIX = ".1";
+
+    private final double sampleRate;
+    private final Path file;
+    private final Logger logger;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Creates a profiler that samples the supplied fraction of events and writes their profiles to the supplied
+     * file, or to the events' metadata if the file is null.
+     */
+    PipelineProfiler(double sampleRate, Path file, Logger logger) {
+        this.sampleRate = sampleRate;
+        this.file = file;
+        this.logger = logger;
+    }
+
+    /**
+     * Returns whether the next event should be profiled.
+     */
+    boolean sample() {
+        return ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /**
+     * Starts profiling the supplied document on the current thread as it enters the pipeline with the supplied name.
+     */
+    void start(String pipelineName, IngestDocument document) {
+        CURRENT.set(new Profile(pipelineName, snapshot(document)));
+    }
+
+    /**
+     * Finishes profiling the document on the current thread with the result of its pipeline. Returns the profile if
+     * it should be added to the event's metadata or null if it was written to the profile file.
+     */
+    Map<String, Object> finish(IngestDocument result, Exception failure) {
+        Profile profile = CURRENT.get();
+        CURRENT.remove();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("pipeline", profile.pipelineName);
+        map.put("took_nanos", System.nanoTime() - profile.start);
+        map.put("before", profile.before);
+        map.put("processor_results", profile.results);
+        if (failure != null) {
+            map.put("error", FailureHandler.message(failure));
+        } else if (result == null) {
+            map.put("dropped", true);
+        } else {
+            map.put("after", snapshot(result));
+        }
+        if (file == null) {
+            return map;
+        }
+        map.put("timestamp", Instant.now().toString());
+        write(map);
+        return null;
+    }
+
+    /**
+     * Records that the supplied processor ran against the supplied document if the document is being profiled.
+     */
+    static void record(Processor processor, IngestDocument result, long elapsedNanos, Exception failure) {
+        Profile profile = CURRENT.get();
+        if (profile == null) {
+            return;
+        }
+        Map<String, Object> processorResult = new LinkedHashMap<>();
+        processorResult.put("type", processor.getType());
+        if (processor.getTag() != null) {
+            processorResult.put("tag", processor.getTag());
+        }
+        processorResult.put("took_nanos", elapsedNanos);
+        if (failure != null) {
+            processorResult.put("error", FailureHandler.message(failure));
+        } else if (result == null) {
+            processorResult.put("dropped", true);
+        } else {
+            processorResult.put("doc", snapshot(result));
+        }
+        profile.results.add(processorResult);
+    }
+
+    private static Map<String, Object> snapshot(IngestDocument document) {
+        Map<String, Object> sourceAndMetadata = document.getSourceAndMetadata();
+        if (sourceAndMetadata instanceof EventWrapper) {
+            // the fields of a lazily converted document are copied without marking them as changed so that profiled
+            // events write back the same fields as other events
+            return ((EventWrapper)sourceAndMetadata).snapshot();
+        }
+        return DeepCopy.of(new LinkedHashMap<>(sourceAndMetadata));
+    }
+
+    private synchronized void write(Map<String, Object> profile) {
+        try {
+            byte[] line = (mapper.writeValueAsString(profile) + "\n").getBytes(StandardCharsets.UTF_8);
+            if (Files.exists(file) && Files.size(file) > 0 && Files.size(file) + line.length > MAX_FILE_SIZE) {
+                Files.move(file, file.resolveSibling(file.getFileName() + ROLLED_FILE_SUFFIX),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            // Logstash never closes filters, so the file is opened for each profile rather than held open. Only a
+            // sample of events is profiled, so this is cheap
+            Files.write(file, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            // profiling must not affect the events, so profiles that cannot be written are lost
+            logger.warn("Error writing pipeline profile to '{}'", file, ex);
+        }
+    }
+
+    private static final class Profile {
+
+        private final String pipelineName;
+        private final Map<String, Object> before;
+        private final List<Map<String, Object>> results = new ArrayList<>();
+        private final long start = System.nanoTime();
+
+        Profile(String pipelineName, Map<String, Object> before) {
+            this.pipelineName = pipelineName;
+            this.before = before;
+        }
+    }
+}
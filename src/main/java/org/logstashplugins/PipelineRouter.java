@@ -0,0 +1,64 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.Event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Selects the pipeline for each event from a sprintf-style pattern such as {@code %{[@metadata][pipeline]}} or
+ * {@code %{type}-%{[fields][source]}}, similar to the {@code pipeline} parameter of the Elasticsearch index API. The
+ * pattern is parsed once into literal text and field references, so resolving the pipeline for an event requires
+ * only the field lookups and, for patterns that consist of a single field reference, no string building.
+ */
+class PipelineRouter {
+
+    // literals[k] precedes fields[k] and the last literal follows the last field
+    private final String[] literals;
+    private final String[] fields;
+
+    PipelineRouter(String pattern) {
+        List<String> literalList = new ArrayList<>();
+        List<String> fieldList = new ArrayList<>();
+        int position = 0;
+        int start;
+        while ((start = pattern.indexOf("%{", position)) >= 0) {
+            int end = pattern.indexOf('}', start);
+            if (end < 0) {
+                throw new IllegalArgumentException(
+                        String.format("Unterminated field reference in pipeline pattern '%s'", pattern));
+            }
+            String field = pattern.substring(start + 2, end);
+            if (field.isEmpty() || field.startsWith("+")) {
+                throw new IllegalArgumentException(
+                        String.format("Unsupported field reference '%%{%s}' in pipeline pattern '%s'", field, pattern));
+            }
+            literalList.add(pattern.substring(position, start));
+            fieldList.add(field);
+            position = end + 1;
+        }
+        literalList.add(pattern.substring(position));
+        this.literals = literalList.toArray(new String[0]);
+        this.fields = fieldList.toArray(new String[0]);
+    }
+
+    /**
+     * Returns the name of the pipeline for the supplied event or null if the event lacks any of the fields referenced
+     * by the pattern.
+     */
+    String resolve(Event evt) {
+        if (fields.length == 1 && literals[0].isEmpty() && literals[1].isEmpty()) {
+            Object value = evt.getField(fields[0]);
+            return value == null ? null : value.toString();
+        }
+        StringBuilder name = new StringBuilder(literals[0]);
+        for (int k = 0; k < fields.length; k++) {
+            Object value = evt.getField(fields[k]);
+            if (value == null) {
+                return null;
+            }
+            name.append(value).append(literals[k + 1]);
+        }
+        return name.toString();
+    }
+}
@@ -0,0 +1,168 @@
+package org.logstashplugins;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.elasticsearch.ingest.Pipeline;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pipelines built from a single version of the pipeline definitions. The filter swaps in a new set when the
+ * definitions are reloaded so that every batch runs against one consistent set of pipelines.
+ *
+ * Pipelines are built when they are first referenced, whether as the primary pipeline, by the pipeline pattern or by
+ * a {@code pipeline} processor of another pipeline, so definitions that are never used cost nothing but parsing.
+ * Pipelines that did not change since the previous set can be carried over to the new set as they are.
+ */
+class PipelineSet {
+
+    static final long BUILD_RETRY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final Map<String, IngestNodePipeline> definitions;
+    private final Map<String, IngestNodePipeline> compiledDefinitions;
+    private final String primaryPipelineName;
+    private final Builder builder;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<Pipeline, Entry> entriesByPipeline = new ConcurrentHashMap<>();
+    private final Map<String, Failure> failures = new ConcurrentHashMap<>();
+    private final long retryIntervalNanos;
+
+    /**
+     * Creates a set of pipelines that are built from the supplied compiled definitions with the supplied builder.
+     * The definitions are those from which the compiled definitions were derived, e.g., by inlining.
+     */
+    PipelineSet(Map<String, IngestNodePipeline> definitions, Map<String, IngestNodePipeline> compiledDefinitions,
+                String primaryPipelineName, Map<String, Entry> carriedOver, Builder builder) {
+        this(definitions, compiledDefinitions, primaryPipelineName, carriedOver, builder, BUILD_RETRY_INTERVAL_NANOS);
+    }
+
+    /**
+     * Creates a set of pipelines as above in which pipelines that fail to build are retried once the supplied
+     * interval has passed.
+     */
+    @VisibleForTesting
+    PipelineSet(Map<String, IngestNodePipeline> definitions, Map<String, IngestNodePipeline> compiledDefinitions,
+                String primaryPipelineName, Map<String, Entry> carriedOver, Builder builder, long retryIntervalNanos) {
+        this.retryIntervalNanos = retryIntervalNanos;
+        this.definitions = Collections.unmodifiableMap(definitions);
+        this.compiledDefinitions = compiledDefinitions;
+        this.primaryPipelineName = primaryPipelineName;
+        this.builder = builder;
+        for (Map.Entry<String, Entry> entry : carriedOver.entrySet()) {
+            entries.put(entry.getKey(), entry.getValue());
+            entriesByPipeline.put(entry.getValue().pipeline, entry.getValue());
+        }
+    }
+
+    Map<String, IngestNodePipeline> getDefinitions() {
+        return definitions;
+    }
+
+    /**
+     * Returns the named pipeline, building it if it has not been built yet, or null if there is no such pipeline.
+     * Throws an {@link IllegalStateException} if the pipeline cannot be built. A pipeline that cannot be built fails
+     * the same way without being rebuilt until {@link #BUILD_RETRY_INTERVAL_NANOS} has passed.
+     */
+    Pipeline getPipeline(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            entry = build(name);
+        }
+        return entry == null ? null : entry.pipeline;
+    }
+
+    Pipeline getPrimaryPipeline() {
+        return getPipeline(primaryPipelineName);
+    }
+
+    /**
+     * Returns the named pipeline and its derived versions if it has been built or null if it has not.
+     */
+    Entry getBuiltEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Returns the native equivalent of the supplied pipeline or null if it has none.
+     */
+    EventPipeline getEventPipeline(Pipeline pipeline) {
+        Entry entry = pipeline == null ? null : entriesByPipeline.get(pipeline);
+        return entry == null ? null : entry.eventPipeline;
+    }
+
+    /**
+     * Returns the batch version of the supplied pipeline or null if it has none.
+     */
+    BatchPipeline getBatchPipeline(Pipeline pipeline) {
+        Entry entry = pipeline == null ? null : entriesByPipeline.get(pipeline);
+        return entry == null ? null : entry.batchPipeline;
+    }
+
+    private synchronized Entry build(String name) {
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            return entry;
+        }
+        // a pipeline that failed to build is not rebuilt for every event that references it, but it is retried after
+        // a while in case it failed for a transient reason, e.g., a lookup file that was not yet in place
+        Failure failure = failures.get(name);
+        if (failure != null && System.nanoTime() - failure.time < retryIntervalNanos) {
+            throw failure.exception;
+        }
+        IngestNodePipeline definition = compiledDefinitions.get(name);
+        if (definition == null) {
+            return null;
+        }
+        try {
+            // the pipelines called by this one are built as their pipeline processors are bound through this set
+            entry = builder.build(name, definition, this::getPipeline);
+        } catch (RuntimeException ex) {
+            failures.put(name, new Failure(ex));
+            throw ex;
+        }
+        failures.remove(name);
+        entries.put(name, entry);
+        entriesByPipeline.put(entry.pipeline, entry);
+        return entry;
+    }
+
+    private static final class Failure {
+
+        private final RuntimeException exception;
+        private final long time = System.nanoTime();
+
+        Failure(RuntimeException exception) {
+            this.exception = exception;
+        }
+    }
+
+    /**
+     * Builds a pipeline and its derived versions from its definition.
+     */
+    interface Builder {
+
+        /**
+         * Builds the named pipeline from the supplied definition, resolving the pipelines that it calls with the
+         * supplied provider.
+         */
+        Entry build(String name, IngestNodePipeline definition, PipelineProvider provider);
+    }
+
+    /**
+     * A built pipeline along with its native and batch versions, if it has them.
+     */
+    static final class Entry {
+
+        private final Pipeline pipeline;
+        private final EventPipeline eventPipeline;
+        private final BatchPipeline batchPipeline;
+
+        Entry(Pipeline pipeline, EventPipeline eventPipeline, BatchPipeline batchPipeline) {
+            this.pipeline = pipeline;
+            this.eventPipeline = eventPipeline;
+            this.batchPipeline = batchPipeline;
+        }
+    }
+}
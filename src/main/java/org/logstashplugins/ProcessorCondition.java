@@ -0,0 +1,381 @@
+package org.logstashplugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of a static analysis of a Painless {@code if} condition on a processor. Conditions that are chains of
+ * {@code &&} are split into their terms, and the leading terms that compare a field of {@code ctx} with a literal,
+ * e.g., {@code ctx.my_field == '1kb'} or {@code ctx?.host?.name != null}, are evaluated natively. If any of those
+ * terms is false, the condition is known to be false without running the script, and if every term of the condition
+ * can be evaluated natively, the script is not needed at all.
+ */
+class ProcessorCondition {
+
+    enum Result { TRUE, FALSE, UNKNOWN }
+
+    private final List<Comparison> comparisons;
+    private final boolean complete;
+
+    private ProcessorCondition(List<Comparison> comparisons, boolean complete) {
+        this.comparisons = comparisons;
+        this.complete = complete;
+    }
+
+    /**
+     * Analyzes the supplied condition, returning null if no part of it can be evaluated natively.
+     */
+    static ProcessorCondition analyze(String source) {
+        List<Token> tokens = Token.tokenize(source);
+        if (tokens == null) {
+            return null;
+        }
+        List<List<Token>> terms = splitConjunction(tokens);
+        if (terms == null) {
+            return null;
+        }
+        List<Comparison> comparisons = new ArrayList<>();
+        for (List<Token> term : terms) {
+            Comparison comparison = Comparison.parse(term);
+            if (comparison == null) {
+                break;
+            }
+            comparisons.add(comparison);
+        }
+        if (comparisons.isEmpty()) {
+            return null;
+        }
+        return new ProcessorCondition(Collections.unmodifiableList(comparisons), comparisons.size() == terms.size());
+    }
+
+    /**
+     * Returns whether the whole condition can be evaluated natively.
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns whether native evaluation may be unable to decide the condition for some documents, e.g., because a
+     * nested field is accessed without the null-safe operator, in which case the script must be run.
+     */
+    boolean needsScript() {
+        if (!complete) {
+            return true;
+        }
+        for (Comparison comparison : comparisons) {
+            if (comparison.field.canFail()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates the natively evaluable terms of the condition against the supplied document source. Returns
+     * {@link Result#UNKNOWN} if the script must be run to decide the condition.
+     */
+    Result evaluate(Map<String, Object> ctx) {
+        for (Comparison comparison : comparisons) {
+            Result result = comparison.evaluate(ctx);
+            if (result != Result.TRUE) {
+                return result;
+            }
+        }
+        return complete ? Result.TRUE : Result.UNKNOWN;
+    }
+
+    /**
+     * Splits the supplied tokens at each top-level {@code &&}, returning null if the expression contains other
+     * top-level boolean or ternary operators that bind more loosely than {@code &&}.
+     */
+    private static List<List<Token>> splitConjunction(List<Token> tokens) {
+        List<List<Token>> terms = new ArrayList<>();
+        List<Token> term = new ArrayList<>();
+        int depth = 0;
+        for (Token token : tokens) {
+            if (token.isSymbol("(") || token.isSymbol("[")) {
+                depth++;
+            } else if (token.isSymbol(")") || token.isSymbol("]")) {
+                depth--;
+            } else if (depth == 0 && (token.isSymbol("||") || token.isSymbol("?") || token.isSymbol(":"))) {
+                return null;
+            } else if (depth == 0 && token.isSymbol("&&")) {
+                terms.add(term);
+                term = new ArrayList<>();
+                continue;
+            }
+            term.add(token);
+        }
+        terms.add(term);
+        return terms;
+    }
+
+    /**
+     * A comparison of a field with a literal using {@code ==} or {@code !=}.
+     */
+    private static final class Comparison {
+
+        private final FieldPath field;
+        private final Object literal;
+        private final boolean negated;
+
+        private Comparison(FieldPath field, Object literal, boolean negated) {
+            this.field = field;
+            this.literal = literal;
+            this.negated = negated;
+        }
+
+        static Comparison parse(List<Token> tokens) {
+            while (tokens.size() > 2 && tokens.get(0).isSymbol("(") && tokens.get(tokens.size() - 1).isSymbol(")")
+                    && isEnclosed(tokens)) {
+                tokens = tokens.subList(1, tokens.size() - 1);
+            }
+            int operator = -1;
+            for (int k = 0; k < tokens.size(); k++) {
+                if (tokens.get(k).isSymbol("==") || tokens.get(k).isSymbol("!=")) {
+                    if (operator >= 0) {
+                        return null;
+                    }
+                    operator = k;
+                }
+            }
+            if (operator < 0) {
+                return null;
+            }
+            boolean negated = tokens.get(operator).isSymbol("!=");
+            List<Token> left = tokens.subList(0, operator);
+            List<Token> right = tokens.subList(operator + 1, tokens.size());
+
+            FieldPath field = FieldPath.parse(left);
+            List<Token> literal = right;
+            if (field == null) {
+                field = FieldPath.parse(right);
+                literal = left;
+            }
+            if (field == null || literal.size() != 1 || !literal.get(0).isLiteral()) {
+                return null;
+            }
+            return new Comparison(field, literal.get(0).literalValue(), negated);
+        }
+
+        private static boolean isEnclosed(List<Token> tokens) {
+            // whether the opening parenthesis is closed by the final token rather than earlier
+            int depth = 0;
+            for (int k = 0; k < tokens.size() - 1; k++) {
+                if (tokens.get(k).isSymbol("(")) {
+                    depth++;
+                } else if (tokens.get(k).isSymbol(")")) {
+                    depth--;
+                }
+                if (depth == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Result evaluate(Map<String, Object> ctx) {
+            Object value = field.resolve(ctx);
+            if (value == FieldPath.UNRESOLVABLE) {
+                return Result.UNKNOWN;
+            }
+            return painlessEquals(value, literal) != negated ? Result.TRUE : Result.FALSE;
+        }
+
+        /**
+         * Equality as implemented by Painless for {@code def} values, which compares numbers by value regardless of
+         * their type.
+         */
+        private static boolean painlessEquals(Object a, Object b) {
+            if (a == null || b == null) {
+                return a == b;
+            }
+            if (a instanceof Number && b instanceof Number) {
+                if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float) {
+                    return ((Number)a).doubleValue() == ((Number)b).doubleValue();
+                }
+                return ((Number)a).longValue() == ((Number)b).longValue();
+            }
+            return a.equals(b);
+        }
+    }
+
+    /**
+     * A reference to a field of {@code ctx} such as {@code ctx.a.b}, {@code ctx?.a?.b} or {@code ctx['a']['b']}.
+     */
+    private static final class FieldPath {
+
+        static final Object UNRESOLVABLE = new Object();
+
+        private final String[] names;
+        // whether each name is accessed with the null-safe operator
+        private final boolean[] nullSafe;
+
+        private FieldPath(String[] names, boolean[] nullSafe) {
+            this.names = names;
+            this.nullSafe = nullSafe;
+        }
+
+        static FieldPath parse(List<Token> tokens) {
+            if (tokens.isEmpty() || !tokens.get(0).isIdentifier("ctx")) {
+                return null;
+            }
+            List<String> names = new ArrayList<>();
+            List<Boolean> nullSafe = new ArrayList<>();
+            int k = 1;
+            while (k < tokens.size()) {
+                Token token = tokens.get(k);
+                if ((token.isSymbol(".") || token.isSymbol("?.")) && k + 1 < tokens.size()
+                        && tokens.get(k + 1).kind == Token.Kind.IDENTIFIER) {
+                    names.add((String)tokens.get(k + 1).value);
+                    nullSafe.add(token.isSymbol("?."));
+                    k += 2;
+                } else if (token.isSymbol("[") && k + 2 < tokens.size()
+                        && tokens.get(k + 1).kind == Token.Kind.STRING && tokens.get(k + 2).isSymbol("]")) {
+                    names.add((String)tokens.get(k + 1).value);
+                    nullSafe.add(false);
+                    k += 3;
+                } else {
+                    return null;
+                }
+            }
+            if (names.isEmpty()) {
+                return null;
+            }
+            boolean[] safe = new boolean[nullSafe.size()];
+            for (int j = 0; j < safe.length; j++) {
+                safe[j] = nullSafe.get(j);
+            }
+            return new FieldPath(names.toArray(new String[0]), safe);
+        }
+
+        /**
+         * Returns whether resolving this path may fail, i.e., whether it accesses a nested field that may not be a
+         * map or may be null without the null-safe operator.
+         */
+        boolean canFail() {
+            return names.length > 1;
+        }
+
+        Object resolve(Map<String, Object> ctx) {
+            Object current = ctx.get(names[0]);
+            for (int k = 1; k < names.length; k++) {
+                if (current == null) {
+                    return nullSafe[k] ? null : UNRESOLVABLE;
+                }
+                if (!(current instanceof Map)) {
+                    return UNRESOLVABLE;
+                }
+                current = ((Map<?, ?>)current).get(names[k]);
+            }
+            return current;
+        }
+    }
+
+    private static final class Token {
+
+        enum Kind { STRING, NUMBER, IDENTIFIER, SYMBOL }
+
+        private static final String[] SYMBOLS = {"==", "!=", "&&", "||", "?.", "<=", ">=", ".", "[", "]", "(", ")",
+                "!", "?", ":", "<", ">", "+", "-", "*", "/", "%", ",", "=", "&", "|", "^", "~", ";", "{", "}"};
+
+        private final Kind kind;
+        private final Object value;
+
+        private Token(Kind kind, Object value) {
+            this.kind = kind;
+            this.value = value;
+        }
+
+        boolean isSymbol(String symbol) {
+            return kind == Kind.SYMBOL && value.equals(symbol);
+        }
+
+        boolean isIdentifier(String identifier) {
+            return kind == Kind.IDENTIFIER && value.equals(identifier);
+        }
+
+        boolean isLiteral() {
+            return kind == Kind.STRING || kind == Kind.NUMBER || isIdentifier("null") || isIdentifier("true")
+                    || isIdentifier("false");
+        }
+
+        Object literalValue() {
+            if (kind == Kind.IDENTIFIER) {
+                return value.equals("null") ? null : Boolean.valueOf((String)value);
+            }
+            return value;
+        }
+
+        /**
+         * Splits the supplied source into tokens, returning null if it contains anything that is not understood.
+         */
+        static List<Token> tokenize(String source) {
+            List<Token> tokens = new ArrayList<>();
+            int k = 0;
+            while (k < source.length()) {
+                char c = source.charAt(k);
+                if (Character.isWhitespace(c)) {
+                    k++;
+                } else if (c == '\'' || c == '"') {
+                    StringBuilder s = new StringBuilder();
+                    int j = k + 1;
+                    while (j < source.length() && source.charAt(j) != c) {
+                        if (source.charAt(j) == '\\' && j + 1 < source.length()) {
+                            j++;
+                        }
+                        s.append(source.charAt(j));
+                        j++;
+                    }
+                    if (j >= source.length()) {
+                        return null;
+                    }
+                    tokens.add(new Token(Kind.STRING, s.toString()));
+                    k = j + 1;
+                } else if (Character.isDigit(c)) {
+                    int j = k;
+                    while (j < source.length() && (Character.isDigit(source.charAt(j)) || source.charAt(j) == '.')) {
+                        j++;
+                    }
+                    if (j < source.length() && Character.isJavaIdentifierPart(source.charAt(j))) {
+                        // type suffixes, hexadecimal and exponent notation are not supported
+                        return null;
+                    }
+                    String number = source.substring(k, j);
+                    try {
+                        tokens.add(new Token(Kind.NUMBER, number.indexOf('.') >= 0
+                                ? (Object)Double.valueOf(number)
+                                : (Object)Long.valueOf(number)));
+                    } catch (NumberFormatException ex) {
+                        return null;
+                    }
+                    k = j;
+                } else if (Character.isJavaIdentifierStart(c)) {
+                    int j = k;
+                    while (j < source.length() && Character.isJavaIdentifierPart(source.charAt(j))) {
+                        j++;
+                    }
+                    tokens.add(new Token(Kind.IDENTIFIER, source.substring(k, j)));
+                    k = j;
+                } else {
+                    String symbol = null;
+                    for (String candidate : SYMBOLS) {
+                        if (source.startsWith(candidate, k)) {
+                            symbol = candidate;
+                            break;
+                        }
+                    }
+                    if (symbol == null) {
+                        return null;
+                    }
+                    tokens.add(new Token(Kind.SYMBOL, symbol));
+                    k += symbol.length();
+                }
+            }
+            return tokens;
+        }
+    }
+}
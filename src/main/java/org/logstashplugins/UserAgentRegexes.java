@@ -0,0 +1,78 @@
+package org.logstashplugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Custom regex files for the {@code user_agent} processor. The user agent plugin only reads regex files from the
+ * {@code ingest-user-agent} directory of the node's config directory, so the files in the configured directory are
+ * copied to that directory of a temporary config directory. Logstash does not close filters, so the directory is
+ * deleted when the JVM exits if it has not been deleted by {@link #close()}. Processors select a file by its name with
+ * the {@code regex_file} setting.
+ */
+class UserAgentRegexes implements Closeable {
+
+    private static final String USER_AGENT_DIRECTORY = "ingest-user-agent";
+    private static final String REGEX_FILE_SUFFIX = ".yml";
+
+    private final Path configDirectory;
+
+    private UserAgentRegexes(Path configDirectory) {
+        this.configDirectory = configDirectory;
+    }
+
+    /**
+     * Copies the regex files in the supplied directory to a new config directory.
+     */
+    static UserAgentRegexes load(Path regexDirectory) {
+        if (!Files.isDirectory(regexDirectory)) {
+            throw new IllegalArgumentException(
+                    String.format("User agent regex path '%s' is not a directory", regexDirectory));
+        }
+        try {
+            // paths registered for deletion on exit are deleted in reverse order, so directories are registered first
+            Path configDirectory = Files.createTempDirectory("ingest-node-config");
+            configDirectory.toFile().deleteOnExit();
+            Path userAgentDirectory = Files.createDirectory(configDirectory.resolve(USER_AGENT_DIRECTORY));
+            userAgentDirectory.toFile().deleteOnExit();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(regexDirectory, "*" + REGEX_FILE_SUFFIX)) {
+                for (Path file : files) {
+                    if (Files.isRegularFile(file)) {
+                        Path copy = userAgentDirectory.resolve(file.getFileName().toString());
+                        copy.toFile().deleteOnExit();
+                        Files.copy(file, copy);
+                    }
+                }
+            }
+            return new UserAgentRegexes(configDirectory);
+        } catch (IOException ex) {
+            throw new IllegalStateException(
+                    String.format("Error reading user agent regex files from '%s'", regexDirectory), ex);
+        }
+    }
+
+    /**
+     * Returns the config directory to be used by the user agent plugin.
+     */
+    Path getConfigDirectory() {
+        return configDirectory;
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(configDirectory.resolve(USER_AGENT_DIRECTORY))) {
+            files.forEach(paths::add);
+        }
+        paths.add(configDirectory.resolve(USER_AGENT_DIRECTORY));
+        paths.add(configDirectory);
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -5,6 +5,9 @@ import co.elastic.logstash.api.Context;
 import co.elastic.logstash.api.Event;
 import co.elastic.logstash.api.FilterMatchListener;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ingest.CompoundProcessor;
+import org.elasticsearch.ingest.Pipeline;
+import org.elasticsearch.ingest.Processor;
 import org.jruby.RubyString;
 import org.junit.Assert;
 import org.junit.Test;
@@ -15,14 +18,19 @@ import org.logstash.plugins.ContextImpl;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class ElasticsearchIngestNodeTest {
@@ -33,6 +41,10 @@ public class ElasticsearchIngestNodeTest {
         return new ElasticsearchIngestNode("test_id", config, context, is);
     }
 
+    private static ElasticsearchIngestNode getFilter(InputStream is, Map<String, Object> settings, Context context) {
+        return new ElasticsearchIngestNode("test_id", new ConfigurationImpl(settings), context, is);
+    }
+
     @Test
     public void testAppendProcessor() throws Exception {
 
@@ -251,6 +263,85 @@ public class ElasticsearchIngestNodeTest {
         Assert.assertTrue(e2.isCancelled());
     }
 
+    @Test
+    public void testEnrichProcessor() throws Exception {
+        Path hosts = Files.createTempFile("hosts", ".csv");
+        Path networks = Files.createTempFile("networks", ".yml");
+        Files.write(hosts, ("name,owner,\"description\"\r\n" +
+                "web1,alice,\"front end, public\"\r\n" +
+                "db1,bob,\"says \"\"hi\"\"\"\r\n").getBytes());
+        Files.write(networks, ("- cidr: 10.0.0.0/8\n" +
+                "  zone: internal\n" +
+                "- cidr: 10.1.0.0/16\n" +
+                "  zone: lab\n" +
+                "  vlan: 42\n" +
+                "- cidr: 10.1.2.3\n" +
+                "  zone: gateway\n" +
+                "- cidr: 2001:db8::/32\n" +
+                "  zone: documentation\n").getBytes());
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"enrich\": {" +
+                        "          \"file\": \"" + hosts + "\"," +
+                        "          \"field\": \"host\"," +
+                        "          \"target_field\": \"host_info\"," +
+                        "          \"match_field\": \"name\"," +
+                        "          \"ignore_missing\": true" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"enrich\": {" +
+                        "          \"file\": \"" + networks + "\"," +
+                        "          \"field\": \"ip\"," +
+                        "          \"target_field\": \"network\"," +
+                        "          \"match_field\": \"cidr\"," +
+                        "          \"match_type\": \"range\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }}";
+        try {
+            ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                    new ByteArrayInputStream(json.getBytes()), "my_pipeline", new ContextImpl(null, null));
+
+            Map<String, String> expectedZones = new HashMap<>();
+            expectedZones.put("10.2.3.4", "internal");
+            expectedZones.put("10.1.9.9", "lab");
+            expectedZones.put("10.1.2.3", "gateway");
+            expectedZones.put("2001:db8::1", "documentation");
+            expectedZones.put("192.168.1.1", null);
+            for (Map.Entry<String, String> expected : expectedZones.entrySet()) {
+                Event e = new org.logstash.Event();
+                e.setField("ip", expected.getKey());
+                Event result = assertSingleEvent(
+                        ingestNodeFilter.filter(Collections.singleton(e), new TestFilterMatchListener()));
+                Assert.assertEquals(expected.getKey(), expected.getValue(), result.getField("[network][zone]"));
+            }
+
+            Event e1 = new org.logstash.Event();
+            e1.setField("host", "db1");
+            e1.setField("ip", "10.1.0.1");
+            Event e2 = assertSingleEvent(ingestNodeFilter.filter(Collections.singleton(e1), new TestFilterMatchListener()));
+            Assert.assertEquals("bob", e2.getField("[host_info][owner]"));
+            Assert.assertEquals("says \"hi\"", e2.getField("[host_info][description]"));
+            Assert.assertEquals(42L, e2.getField("[network][vlan]"));
+
+            Event e3 = new org.logstash.Event();
+            e3.setField("host", "web1");
+            e3.setField("ip", "10.0.0.1");
+            Event e4 = assertSingleEvent(ingestNodeFilter.filter(Collections.singleton(e3), new TestFilterMatchListener()));
+            Assert.assertEquals("front end, public", e4.getField("[host_info][description]"));
+            Assert.assertNull(e4.getField("[network][vlan]"));
+            ingestNodeFilter.close();
+        } finally {
+            Files.delete(hosts);
+            Files.delete(networks);
+        }
+    }
+
     @Test
     public void testFailProcessor() throws Exception {
 
@@ -280,6 +371,197 @@ public class ElasticsearchIngestNodeTest {
         }
     }
 
+    @Test
+    public void testFailureModeTag() throws Exception {
+
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"set\": {" +
+                        "          \"field\": \"my_field2\"," +
+                        "          \"value\": \"bar\"" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"fail\": {" +
+                        "          \"message\": \"custom error message\"," +
+                        "          \"tag\": \"fail_tag\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }}";
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), "my_pipeline");
+        settings.put(ElasticsearchIngestNode.FAILURE_MODE.name(), "tag");
+        ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+
+        Event e1 = new org.logstash.Event();
+        e1.setField("my_field1", "foo");
+        Event e2 = assertSingleEvent(ingestNodeFilter.filter(Collections.singleton(e1), new TestFilterMatchListener()));
+        Assert.assertSame(e1, e2);
+        Assert.assertFalse(e2.isCancelled());
+        Assert.assertEquals("foo", e2.getField("my_field1"));
+        Assert.assertNull(e2.getField("my_field2"));
+        Assert.assertEquals(Collections.singletonList("_ingest_node_failure"), e2.getField("tags"));
+        Assert.assertEquals("custom error message", e2.getField("[@metadata][_ingest][on_failure_message]"));
+        Assert.assertEquals("fail", e2.getField("[@metadata][_ingest][on_failure_processor_type]"));
+        Assert.assertEquals("fail_tag", e2.getField("[@metadata][_ingest][on_failure_processor_tag]"));
+    }
+
+    @Test
+    public void testPipelinePattern() throws Exception {
+
+        String json =
+
+                "{ \"default\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"set\": {" +
+                        "          \"field\": \"routed_to\"," +
+                        "          \"value\": \"default\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }," +
+                        "\"apache-logs\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"set\": {" +
+                        "          \"field\": \"routed_to\"," +
+                        "          \"value\": \"apache\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }," +
+                        "\"nginx-logs\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"set\": {" +
+                        "          \"field\": \"routed_to\"," +
+                        "          \"value\": \"nginx\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }}";
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), "default");
+        settings.put(ElasticsearchIngestNode.PIPELINE_PATTERN.name(), "%{[fields][source]}-logs");
+        settings.put(ElasticsearchIngestNode.FAILURE_MODE.name(), "tag");
+        ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+
+        List<Event> events = new ArrayList<>();
+        for (String source : Arrays.asList("nginx", "apache", null, "nginx", "iis")) {
+            Event e = new org.logstash.Event();
+            if (source != null) {
+                e.setField("[fields][source]", source);
+            }
+            events.add(e);
+        }
+        List<Event> results = new ArrayList<>(ingestNodeFilter.filter(events, new TestFilterMatchListener()));
+
+        Assert.assertEquals(5, results.size());
+        Assert.assertEquals("nginx", results.get(0).getField("routed_to"));
+        Assert.assertEquals("apache", results.get(1).getField("routed_to"));
+        Assert.assertEquals("default", results.get(2).getField("routed_to"));
+        Assert.assertEquals("nginx", results.get(3).getField("routed_to"));
+        Assert.assertSame(events.get(4), results.get(4));
+        Assert.assertNull(results.get(4).getField("routed_to"));
+        Assert.assertEquals(Collections.singletonList("_ingest_node_failure"), results.get(4).getField("tags"));
+        Assert.assertEquals("Could not find pipeline 'iis-logs'",
+                results.get(4).getField("[@metadata][_ingest][on_failure_message]"));
+        Assert.assertEquals(2, ingestNodeFilter.getMetrics().getPipelineMetrics("nginx-logs").in.sum());
+    }
+
+    @Test
+    public void testFailureModeDrop() throws Exception {
+
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"grok\": {" +
+                        "          \"field\": \"my_field\"," +
+                        "          \"patterns\": [\"%{NUMBER:duration} %{IP:client}\"]" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }}";
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), "my_pipeline");
+        settings.put(ElasticsearchIngestNode.FAILURE_MODE.name(), "drop");
+        ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+
+        Event e1 = new org.logstash.Event();
+        e1.setField("my_field", "3.44 55.3.244.1");
+        Event e2 = new org.logstash.Event();
+        e2.setField("my_field", "no match");
+        List<Event> results = new ArrayList<>(
+                ingestNodeFilter.filter(Arrays.asList(e1, e2), new TestFilterMatchListener()));
+        Assert.assertEquals(2, results.size());
+        Assert.assertFalse(results.get(0).isCancelled());
+        Assert.assertEquals("55.3.244.1", results.get(0).getField("client"));
+        Assert.assertTrue(results.get(1).isCancelled());
+    }
+
+    @Test
+    public void testGrokWatchdog() throws Exception {
+
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"grok\": {" +
+                        "          \"field\": \"message\"," +
+                        "          \"patterns\": [\"^(\\\\w+\\\\s?)*$\"]," +
+                        "          \"tag\": \"slow_grok\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }}";
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), "my_pipeline");
+        settings.put(ElasticsearchIngestNode.FAILURE_MODE.name(), "tag");
+        settings.put(ElasticsearchIngestNode.WATCHDOG_INTERVAL.name(), "50ms");
+        settings.put(ElasticsearchIngestNode.WATCHDOG_MAX_TIME.name(), "100ms");
+        ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+
+        // catastrophic backtracking that would run for far longer than the watchdog permits
+        Event e1 = new org.logstash.Event();
+        e1.setField("message", "aaaa bbbb cccc dddd eeee ffff gggg hhhh iiii jjjj kkkk llll mmmm nnnn !");
+        long start = System.nanoTime();
+        Event e2 = assertSingleEvent(ingestNodeFilter.filter(Collections.singleton(e1), new TestFilterMatchListener()));
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        Assert.assertEquals(Collections.singletonList("_ingest_node_failure"), e2.getField("tags"));
+        Assert.assertTrue(e2.getField("[@metadata][_ingest][on_failure_message]").toString()
+                .contains("grok pattern matching was interrupted"));
+
+        IngestMetrics metrics = ingestNodeFilter.getMetrics();
+        Assert.assertEquals(1, metrics.watchdogInterrupts.sum());
+        Assert.assertEquals(1,
+                metrics.getPipelineMetrics("my_pipeline").getProcessor("slow_grok").watchdogInterrupts.sum());
+    }
+
+    @Test
+    public void testInvalidWatchdogSetting() throws Exception {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), "my_pipeline");
+        settings.put(ElasticsearchIngestNode.WATCHDOG_MAX_TIME.name(), "0ms");
+        try {
+            getFilter(new ByteArrayInputStream("{}".getBytes()), settings, new ContextImpl(null, null));
+            Assert.fail("Filter should not accept a watchdog max time of zero");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("Setting 'watchdog_max_time' must be positive but was '0ms'", e.getMessage());
+        }
+    }
+
     @Test
     public void testForeachProcessor() throws Exception {
 
@@ -336,6 +618,61 @@ public class ElasticsearchIngestNodeTest {
         Assert.assertEquals(-97.822, e2.getField("[geoip][location][lon]"));
     }
 
+    @Test
+    public void testGeoIpCache() throws Exception {
+        String json =
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"geoip\": {" +
+                        "          \"field\": \"ip\"" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"geoip\": {" +
+                        "          \"field\": \"ip\"," +
+                        "          \"target_field\": \"geoip2\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }}";
+        ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), "my_pipeline", new ContextImpl(null, null));
+        ElasticsearchIngestNode otherFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), "my_pipeline", new ContextImpl(null, null));
+        Processor processor = ingestNodeFilter.getPipelineByName("my_pipeline").getCompoundProcessor()
+                .getProcessors().get(0);
+        Assert.assertTrue(InstrumentedProcessor.unwrap(processor) instanceof CachingProcessor);
+
+        List<Event> events = new ArrayList<>();
+        for (String ip : Arrays.asList("8.8.8.8", "8.8.8.8", "127.0.0.1")) {
+            Event e = new org.logstash.Event();
+            e.setField("ip", ip);
+            events.add(e);
+        }
+        List<Event> results = new ArrayList<>(ingestNodeFilter.filter(events, new TestFilterMatchListener()));
+        for (int k = 0; k < 2; k++) {
+            Assert.assertEquals("US", results.get(k).getField("[geoip][country_iso_code]"));
+            Assert.assertEquals(-97.822, results.get(k).getField("[geoip][location][lon]"));
+            Assert.assertEquals("US", results.get(k).getField("[geoip2][country_iso_code]"));
+        }
+        Assert.assertFalse(results.get(2).includes("geoip"));
+        Assert.assertFalse(results.get(2).includes("geoip2"));
+
+        // results are shared by processors with the same database and properties, whatever their target field
+        IngestMetrics metrics = ingestNodeFilter.getMetrics();
+        Assert.assertEquals(2, metrics.geoIpCache.misses.sum());
+        Assert.assertEquals(4, metrics.geoIpCache.hits.sum());
+
+        // the databases are shared by filters and remain open when a filter using them is closed
+        ingestNodeFilter.close();
+        Event e = new org.logstash.Event();
+        e.setField("ip", "8.8.8.8");
+        Event result = assertSingleEvent(otherFilter.filter(Collections.singleton(e), new TestFilterMatchListener()));
+        Assert.assertEquals("US", result.getField("[geoip][country_iso_code]"));
+        otherFilter.close();
+    }
+
     @Test
     public void testGrokProcessor() throws Exception {
         String json =
@@ -574,97 +911,153 @@ public class ElasticsearchIngestNodeTest {
     }
 
     @Test
-    public void testRemoveProcessor() throws Exception {
+    public void testPipelineMetrics() throws Exception {
 
         String json =
 
                 "{ \"my_pipeline\" : {" +
                         "    \"processors\": [" +
                         "      {" +
-                        "        \"remove\": {" +
-                        "          \"field\": \"my_field1\"," +
-                        "          \"ignore_missing\": false" +
+                        "        \"pipeline\": {" +
+                        "          \"name\": \"my_pipeline2\"," +
+                        "          \"tag\": \"call_pipeline2\"" +
                         "        }" +
                         "      }" +
                         "    ]" +
-                        "  }}";
+                        "  }," +
+                        "\"my_pipeline2\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"drop\": {" +
+                        "          \"if\": \"ctx.my_field1 == 'drop'\"" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"lowercase\": {" +
+                        "          \"field\": \"my_field1\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }" +
+                        "}";
         ElasticsearchIngestNode ingestNodeFilter = getFilter(
                 new ByteArrayInputStream(json.getBytes()), "my_pipeline", new ContextImpl(null, null));
 
-        Event e1 = new org.logstash.Event();
-        String value = "FOO";
-        e1.setField("my_field1", value);
-        e1.setField("my_field2", value);
-        Event e2 = assertSingleEvent(ingestNodeFilter.filter(Collections.singleton(e1), new TestFilterMatchListener()));
-        compareEventsExcludingFields(e1, e2, new String[]{"my_field1"});
-        Assert.assertNull(e2.getField("my_field1"));
+        List<Event> events = new ArrayList<>();
+        for (String value : Arrays.asList("FOO", "drop", "BAR")) {
+            Event e = new org.logstash.Event();
+            e.setField("my_field1", value);
+            events.add(e);
+        }
+        ingestNodeFilter.filter(events, new TestFilterMatchListener());
+        try {
+            ingestNodeFilter.filter(Collections.singleton(new org.logstash.Event()), new TestFilterMatchListener());
+            Assert.fail("Lowercase processor should have failed for missing field");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        IngestMetrics.PipelineMetrics primary = ingestNodeFilter.getMetrics().getPipelineMetrics("my_pipeline");
+        Assert.assertEquals(4, primary.in.sum());
+        Assert.assertEquals(2, primary.out.sum());
+        Assert.assertEquals(1, primary.dropped.sum());
+        Assert.assertEquals(1, primary.failed.sum());
+        Assert.assertEquals(4, primary.getProcessor("call_pipeline2").invocations.sum());
+        Assert.assertEquals(1, primary.getProcessor("call_pipeline2").failures.sum());
+
+        IngestMetrics.PipelineMetrics nested = ingestNodeFilter.getMetrics().getPipelineMetrics("my_pipeline2");
+        Assert.assertEquals(4, nested.in.sum());
+        Assert.assertEquals(1, nested.dropped.sum());
+        Assert.assertEquals(1, nested.getProcessor("drop_1").invocations.sum());
+        IngestMetrics.ProcessorMetrics lowercase = nested.getProcessor("lowercase_2");
+        Assert.assertEquals(3, lowercase.invocations.sum());
+        Assert.assertEquals(1, lowercase.failures.sum());
+        Assert.assertEquals(3, lowercase.latency.getTotalCount());
     }
 
     @Test
-    public void testRenameProcessor() throws Exception {
+    public void testInlinePipelines() throws Exception {
 
         String json =
 
                 "{ \"my_pipeline\" : {" +
                         "    \"processors\": [" +
                         "      {" +
-                        "        \"rename\": {" +
-                        "          \"field\": \"my_field1\"," +
-                        "          \"target_field\": \"my_field2\"," +
-                        "          \"ignore_missing\": false" +
+                        "        \"pipeline\": {" +
+                        "          \"name\": \"my_pipeline2\"" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"set\": {" +
+                        "          \"field\": \"my_field2\"," +
+                        "          \"value\": \"{{my_field1}}\"" +
                         "        }" +
                         "      }" +
                         "    ]" +
-                        "  }}";
+                        "  }," +
+                        "\"my_pipeline2\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"drop\": {" +
+                        "          \"if\": \"ctx.my_field1 == 'drop'\"" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"lowercase\": {" +
+                        "          \"field\": \"my_field1\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }" +
+                        "}";
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), "my_pipeline");
+        settings.put(ElasticsearchIngestNode.INLINE_PIPELINES.name(), true);
         ElasticsearchIngestNode ingestNodeFilter = getFilter(
-                new ByteArrayInputStream(json.getBytes()), "my_pipeline", new ContextImpl(null, null));
+                new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
 
-        Event e1 = new org.logstash.Event();
-        e1.setField("my_field1", "foo");
-        Event e2 = assertSingleEvent(ingestNodeFilter.filter(Collections.singleton(e1), new TestFilterMatchListener()));
-        compareEventsExcludingFields(e1, e2, new String[]{"my_field1", "my_field2"});
-        Assert.assertEquals(e1.getField("my_field1"), e2.getField("my_field2"));
+        List<Event> events = new ArrayList<>();
+        for (String value : Arrays.asList("FOO", "drop")) {
+            Event e = new org.logstash.Event();
+            e.setField("my_field1", value);
+            events.add(e);
+        }
+        List<Event> results = new ArrayList<>(ingestNodeFilter.filter(events, new TestFilterMatchListener()));
+
+        Assert.assertEquals("foo", results.get(0).getField("my_field1"));
+        Assert.assertEquals("foo", results.get(0).getField("my_field2"));
+        Assert.assertTrue(results.get(1).isCancelled());
+        // the nested pipeline's processors run as part of the primary pipeline
+        Assert.assertEquals(2, ingestNodeFilter.getMetrics().getPipelineMetrics("my_pipeline").in.sum());
+        Assert.assertEquals(0, ingestNodeFilter.getMetrics().getPipelineMetrics("my_pipeline2").in.sum());
     }
 
     @Test
-    public void testRenameProcessorWithFailure() throws Exception {
+    public void testNativeConditions() throws Exception {
 
         String json =
 
                 "{ \"my_pipeline\" : {" +
                         "    \"processors\": [" +
                         "      {" +
-                        "        \"rename\": {" +
-                        "          \"field\": \"my_missing_field\"," +
-                        "          \"target_field\": \"my_field2\"," +
-                        "          \"ignore_missing\": false," +
-                        "          \"tag\": \"rename_tag\"," +
-                        "          \"on_failure\": [" +
-                        "            {" +
-                        "              \"set\": {" +
-                        "                \"field\": \"error_field1\"," +
-                        "                \"value\": \"{{ _ingest.on_failure_message }}\"" +
-                        "              }" +
-                        "            }," +
-                        "            {" +
-                        "              \"set\": {" +
-                        "                \"field\": \"error_field2\"," +
-                        "                \"value\": \"{{ _ingest.on_failure_processor_type }}\"" +
-                        "              }" +
-                        "            }," +
-                        "            {" +
-                        "              \"set\": {" +
-                        "                \"field\": \"error_field3\"," +
-                        "                \"value\": \"{{ _ingest.on_failure_processor_tag }}\"" +
-                        "              }" +
-                        "            }," +
-                        "            {" +
-                        "              \"set\": {" +
-                        "                \"field\": \"error_field4\"," +
-                        "                \"value\": \"{{ _ingest.timestamp }}\"" +
-                        "              }" +
-                        "            }" +
-                        "          ]" +
+                        "        \"set\": {" +
+                        "          \"if\": \"ctx.my_field == '1kb'\"," +
+                        "          \"field\": \"native\"," +
+                        "          \"value\": true" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"set\": {" +
+                        "          \"if\": \"ctx?.nested?.count == 5 && ctx.my_field.startsWith('1')\"," +
+                        "          \"field\": \"partial\"," +
+                        "          \"value\": true" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"set\": {" +
+                        "          \"if\": \"ctx.my_field.length() == 3\"," +
+                        "          \"field\": \"script\"," +
+                        "          \"value\": true" +
                         "        }" +
                         "      }" +
                         "    ]" +
@@ -672,10 +1065,595 @@ public class ElasticsearchIngestNodeTest {
         ElasticsearchIngestNode ingestNodeFilter = getFilter(
                 new ByteArrayInputStream(json.getBytes()), "my_pipeline", new ContextImpl(null, null));
 
-        String initialFieldName = "my_field1";
-        String initialFieldValue = "foo";
+        List<Processor> processors =
+                ingestNodeFilter.getPipelineByName("my_pipeline").getCompoundProcessor().getProcessors();
+        Assert.assertTrue(processors.get(0) instanceof NativeConditionalProcessor);
+        Assert.assertTrue(processors.get(1) instanceof NativeConditionalProcessor);
+        Assert.assertFalse(processors.get(2) instanceof NativeConditionalProcessor);
+
         Event e1 = new org.logstash.Event();
-        e1.setField(initialFieldName, initialFieldValue);
+        e1.setField("my_field", "1kb");
+        e1.setField("[nested][count]", 5);
+        Event e2 = assertSingleEvent(ingestNodeFilter.filter(Collections.singleton(e1), new TestFilterMatchListener()));
+        Assert.assertEquals(true, e2.getField("native"));
+        Assert.assertEquals(true, e2.getField("partial"));
+        Assert.assertEquals(true, e2.getField("script"));
+
+        // the natively evaluated term decides the partially native condition when the nested field is missing
+        Event e3 = new org.logstash.Event();
+        e3.setField("my_field", "10mb");
+        Event e4 = assertSingleEvent(ingestNodeFilter.filter(Collections.singleton(e3), new TestFilterMatchListener()));
+        Assert.assertNull(e4.getField("native"));
+        Assert.assertNull(e4.getField("partial"));
+        Assert.assertNull(e4.getField("script"));
+    }
+
+    @Test
+    public void testConditionCannotModifyNestedFields() throws Exception {
+
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"set\": {" +
+                        "          \"if\": \"ctx.my_field == 'foo' && ctx.nested.list.add('bar')\"," +
+                        "          \"field\": \"changed\"," +
+                        "          \"value\": true" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }}";
+        for (boolean nativeConditions : new boolean[]{true, false}) {
+            Map<String, Object> settings = new HashMap<>();
+            settings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), "my_pipeline");
+            settings.put(ElasticsearchIngestNode.FAILURE_MODE.name(), "tag");
+            settings.put(ElasticsearchIngestNode.NATIVE_CONDITIONS.name(), nativeConditions);
+            ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                    new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+
+            Event e1 = new org.logstash.Event();
+            e1.setField("my_field", "foo");
+            e1.setField("[nested][list]", Collections.singletonList("foo"));
+            Event e2 = assertSingleEvent(
+                    ingestNodeFilter.filter(Collections.singleton(e1), new TestFilterMatchListener()));
+            Assert.assertEquals(Collections.singletonList("foo"), e2.getField("[nested][list]"));
+            Assert.assertNull(e2.getField("changed"));
+            Assert.assertEquals(Collections.singletonList("_ingest_node_failure"), e2.getField("tags"));
+        }
+    }
+
+    @Test
+    public void testNativeProcessors() throws Exception {
+
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"set\": {" +
+                        "          \"field\": \"nested.value\"," +
+                        "          \"value\": 42" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"rename\": {" +
+                        "          \"field\": \"my_field1\"," +
+                        "          \"target_field\": \"nested.renamed\"" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"uppercase\": {" +
+                        "          \"if\": \"ctx.my_field2 == 'foo'\"," +
+                        "          \"field\": \"my_field2\"" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"convert\": {" +
+                        "          \"field\": \"numbers\"," +
+                        "          \"type\": \"integer\"" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"append\": {" +
+                        "          \"field\": \"numbers\"," +
+                        "          \"value\": [3, 4]" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"remove\": {" +
+                        "          \"field\": [\"my_field3\", \"missing\"]," +
+                        "          \"ignore_missing\": true" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"lowercase\": {" +
+                        "          \"field\": \"my_field4\"," +
+                        "          \"tag\": \"lowercase_tag\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }," +
+                        "\"my_template_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"set\": {" +
+                        "          \"field\": \"my_field2\"," +
+                        "          \"value\": \"{{my_field1}}\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }" +
+                        "}";
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), "my_pipeline");
+        settings.put(ElasticsearchIngestNode.FAILURE_MODE.name(), "tag");
+        ElasticsearchIngestNode nativeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+        settings.put(ElasticsearchIngestNode.NATIVE_PROCESSORS.name(), false);
+        ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+
+        Assert.assertNotNull(nativeFilter.getEventPipeline("my_pipeline"));
+        Assert.assertNull(nativeFilter.getEventPipeline("my_template_pipeline"));
+        Assert.assertNull(ingestNodeFilter.getEventPipeline("my_pipeline"));
+
+        // native processors produce the same events as their ingest node counterparts
+        for (ElasticsearchIngestNode filter : Arrays.asList(nativeFilter, ingestNodeFilter)) {
+            Event e1 = new org.logstash.Event();
+            e1.setField("my_field1", "bar");
+            e1.setField("my_field2", "foo");
+            e1.setField("my_field3", "baz");
+            e1.setField("my_field4", "QUX");
+            // zero-padded values are decimal and only values prefixed with 0x are hexadecimal
+            e1.setField("numbers", Arrays.asList("08", "010", "0x1F", "-0x2"));
+            Event e2 = assertSingleEvent(filter.filter(Collections.singleton(e1), new TestFilterMatchListener()));
+            Assert.assertEquals(42L, e2.getField("[nested][value]"));
+            Assert.assertEquals("bar", e2.getField("[nested][renamed]"));
+            Assert.assertFalse(e2.includes("my_field1"));
+            Assert.assertEquals("FOO", e2.getField("my_field2"));
+            Assert.assertFalse(e2.includes("my_field3"));
+            Assert.assertEquals("qux", e2.getField("my_field4"));
+            Assert.assertEquals(Arrays.asList(8L, 10L, 31L, -2L, 3L, 4L), e2.getField("numbers"));
+
+            // failures are reported with the type and tag of the failing processor
+            Event e3 = new org.logstash.Event();
+            e3.setField("my_field1", "bar");
+            Event e4 = assertSingleEvent(filter.filter(Collections.singleton(e3), new TestFilterMatchListener()));
+            Assert.assertSame(e3, e4);
+            Assert.assertEquals("bar", e4.getField("my_field1"));
+            Assert.assertEquals("field [numbers] not present as part of path [numbers]",
+                    e4.getField("[@metadata][_ingest][on_failure_message]"));
+            Assert.assertEquals("convert", e4.getField("[@metadata][_ingest][on_failure_processor_type]"));
+
+            Event e5 = new org.logstash.Event();
+            e5.setField("numbers", Collections.singletonList("#1F"));
+            Event e6 = assertSingleEvent(filter.filter(Collections.singleton(e5), new TestFilterMatchListener()));
+            Assert.assertEquals("convert", e6.getField("[@metadata][_ingest][on_failure_processor_type]"));
+        }
+        IngestMetrics.PipelineMetrics metrics = nativeFilter.getMetrics().getPipelineMetrics("my_pipeline");
+        Assert.assertEquals(3, metrics.in.sum());
+        Assert.assertEquals(2, metrics.failed.sum());
+        Assert.assertEquals(3, metrics.getProcessor("convert_4").invocations.sum());
+        Assert.assertEquals(2, metrics.getProcessor("convert_4").failures.sum());
+    }
+
+    @Test
+    public void testNativeRenameFailure() throws Exception {
+
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"rename\": {" +
+                        "          \"field\": \"my_field1\"," +
+                        "          \"target_field\": \"nested.renamed\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }" +
+                        "}";
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), "my_pipeline");
+        settings.put(ElasticsearchIngestNode.FAILURE_MODE.name(), "tag");
+        settings.put(ElasticsearchIngestNode.IN_PLACE.name(), true);
+        ElasticsearchIngestNode nativeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+        settings.put(ElasticsearchIngestNode.NATIVE_PROCESSORS.name(), false);
+        ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+        Assert.assertNotNull(nativeFilter.getEventPipeline("my_pipeline"));
+
+        // a rename whose target cannot be set puts its field back
+        for (ElasticsearchIngestNode filter : Arrays.asList(nativeFilter, ingestNodeFilter)) {
+            Event e1 = new org.logstash.Event();
+            e1.setField("my_field1", "bar");
+            e1.setField("nested", "not a map");
+            Event e2 = assertSingleEvent(filter.filter(Collections.singleton(e1), new TestFilterMatchListener()));
+            Assert.assertEquals("bar", e2.getField("my_field1"));
+            Assert.assertEquals("not a map", e2.getField("nested"));
+            Assert.assertEquals("rename", e2.getField("[@metadata][_ingest][on_failure_processor_type]"));
+        }
+    }
+
+    @Test
+    public void testBatchExecution() throws Exception {
+
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"date\": {" +
+                        "          \"field\": \"my_date\"," +
+                        "          \"formats\": [\"MM/dd/yyyy HH:mm:ss\"]," +
+                        "          \"target_field\": \"my_timestamp\"," +
+                        "          \"tag\": \"date_tag\"" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"uppercase\": {" +
+                        "          \"field\": \"my_field\"" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"drop\": {" +
+                        "          \"if\": \"ctx.my_field == 'DROP'\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }," +
+                        "\"my_template_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"date\": {" +
+                        "          \"field\": \"my_date\"," +
+                        "          \"formats\": [\"MM/dd/yyyy HH:mm:ss\"]," +
+                        "          \"timezone\": \"{{my_timezone}}\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }" +
+                        "}";
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), "my_pipeline");
+        settings.put(ElasticsearchIngestNode.FAILURE_MODE.name(), "tag");
+        ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+        settings.put(ElasticsearchIngestNode.BATCH_EXECUTION.name(), true);
+        ElasticsearchIngestNode batchFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+
+        Assert.assertNotNull(batchFilter.getBatchPipeline("my_pipeline"));
+        Assert.assertNull(batchFilter.getBatchPipeline("my_template_pipeline"));
+        Assert.assertNull(ingestNodeFilter.getBatchPipeline("my_pipeline"));
+
+        // batch execution produces the same events as running each event through the pipeline in turn
+        String[] dates = {"08/14/1991 13:45:55", "08/14/1991 13:45:55", "08/15/1991 01:02:03", "not a date",
+                "08/14/1991 13:45:55"};
+        String[] values = {"foo", "bar", "baz", "qux", "drop"};
+        List<List<Event>> results = new ArrayList<>();
+        for (ElasticsearchIngestNode filter : Arrays.asList(ingestNodeFilter, batchFilter)) {
+            List<Event> events = new ArrayList<>();
+            for (int k = 0; k < dates.length; k++) {
+                Event e = new org.logstash.Event();
+                e.setField("my_date", dates[k]);
+                e.setField("my_field", values[k]);
+                events.add(e);
+            }
+            results.add(new ArrayList<>(filter.filter(events, new TestFilterMatchListener())));
+        }
+        for (List<Event> events : results) {
+            Assert.assertEquals(5, events.size());
+            Assert.assertEquals("1991-08-14T13:45:55.000Z", events.get(0).getField("my_timestamp"));
+            Assert.assertEquals("FOO", events.get(0).getField("my_field"));
+            Assert.assertEquals("1991-08-14T13:45:55.000Z", events.get(1).getField("my_timestamp"));
+            Assert.assertEquals("1991-08-15T01:02:03.000Z", events.get(2).getField("my_timestamp"));
+            Assert.assertEquals("qux", events.get(3).getField("my_field"));
+            Assert.assertEquals("date", events.get(3).getField("[@metadata][_ingest][on_failure_processor_type]"));
+            Assert.assertEquals("date_tag", events.get(3).getField("[@metadata][_ingest][on_failure_processor_tag]"));
+            Assert.assertTrue(events.get(4).isCancelled());
+        }
+        Assert.assertEquals(results.get(0).get(3).getField("[@metadata][_ingest][on_failure_message]"),
+                results.get(1).get(3).getField("[@metadata][_ingest][on_failure_message]"));
+
+        IngestMetrics.PipelineMetrics metrics = batchFilter.getMetrics().getPipelineMetrics("my_pipeline");
+        Assert.assertEquals(5, metrics.in.sum());
+        Assert.assertEquals(3, metrics.out.sum());
+        Assert.assertEquals(1, metrics.dropped.sum());
+        Assert.assertEquals(1, metrics.failed.sum());
+        Assert.assertEquals(5, metrics.getProcessor("date_tag").invocations.sum());
+        Assert.assertEquals(1, metrics.getProcessor("date_tag").failures.sum());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testProfile() throws Exception {
+
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"uppercase\": {" +
+                        "          \"field\": \"my_field\"," +
+                        "          \"tag\": \"uppercase_tag\"" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"set\": {" +
+                        "          \"if\": \"ctx.my_field == 'SKIP'\"," +
+                        "          \"field\": \"skipped\"," +
+                        "          \"value\": true" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"rename\": {" +
+                        "          \"field\": \"my_field\"," +
+                        "          \"target_field\": \"renamed\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }}";
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), "my_pipeline");
+        settings.put(ElasticsearchIngestNode.FAILURE_MODE.name(), "tag");
+        settings.put(ElasticsearchIngestNode.PROFILE_SAMPLE_RATE.name(), "1");
+        ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+
+        // profiled events are otherwise unchanged and carry their profile in their metadata
+        Event e1 = new org.logstash.Event();
+        e1.setField("my_field", "foo");
+        Event e2 = assertSingleEvent(ingestNodeFilter.filter(Collections.singleton(e1), new TestFilterMatchListener()));
+        Assert.assertEquals("FOO", e2.getField("renamed"));
+        Assert.assertFalse(e2.includes("my_field"));
+        Assert.assertEquals("my_pipeline", e2.getField("[@metadata][_ingest_profile][pipeline]"));
+        Assert.assertEquals("foo", e2.getField("[@metadata][_ingest_profile][before][my_field]"));
+        Assert.assertEquals("FOO", e2.getField("[@metadata][_ingest_profile][after][renamed]"));
+        List<Map<String, Object>> results =
+                (List<Map<String, Object>>)e2.getField("[@metadata][_ingest_profile][processor_results]");
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals("uppercase", results.get(0).get("type"));
+        Assert.assertEquals("uppercase_tag", results.get(0).get("tag"));
+        Assert.assertEquals("FOO", ((Map<String, Object>)results.get(0).get("doc")).get("my_field"));
+        Assert.assertEquals("rename", results.get(1).get("type"));
+        Assert.assertEquals("FOO", ((Map<String, Object>)results.get(1).get("doc")).get("renamed"));
+
+        Event e3 = new org.logstash.Event();
+        e3.setField("other_field", "bar");
+        Event e4 = assertSingleEvent(ingestNodeFilter.filter(Collections.singleton(e3), new TestFilterMatchListener()));
+        Assert.assertSame(e3, e4);
+        Assert.assertNotNull(e4.getField("[@metadata][_ingest_profile][error]"));
+        results = (List<Map<String, Object>>)e4.getField("[@metadata][_ingest_profile][processor_results]");
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(e4.getField("[@metadata][_ingest][on_failure_message]"), results.get(0).get("error"));
+
+        // profiles are written to the profile file instead of the events if one is configured
+        Path profileFile = Files.createTempFile("profile", ".json");
+        try {
+            settings.put(ElasticsearchIngestNode.PROFILE_PATH.name(), profileFile.toString());
+            ElasticsearchIngestNode fileFilter = getFilter(
+                    new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+            Event e5 = new org.logstash.Event();
+            e5.setField("my_field", "foo");
+            Event e6 = assertSingleEvent(fileFilter.filter(Collections.singleton(e5), new TestFilterMatchListener()));
+            fileFilter.close();
+            Assert.assertFalse(e6.includes("[@metadata][_ingest_profile]"));
+            List<String> lines = Files.readAllLines(profileFile);
+            Assert.assertEquals(1, lines.size());
+            Assert.assertTrue(lines.get(0).contains("\"pipeline\":\"my_pipeline\""));
+            Assert.assertTrue(lines.get(0).contains("\"tag\":\"uppercase_tag\""));
+        } finally {
+            Files.deleteIfExists(profileFile);
+        }
+
+        settings.put(ElasticsearchIngestNode.PROFILE_SAMPLE_RATE.name(), "2");
+        try {
+            getFilter(new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+            Assert.fail("Sample rates greater than 1 should be rejected");
+        } catch (IllegalArgumentException ex) {
+            Assert.assertEquals("Setting 'profile_sample_rate' must be greater than 0 and at most 1 but was '2'",
+                    ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testPipelineProcessorCycle() throws Exception {
+
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"pipeline\": {" +
+                        "          \"name\": \"my_pipeline2\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }," +
+                        "\"my_pipeline2\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"rename\": {" +
+                        "          \"field\": \"my_field1\"," +
+                        "          \"target_field\": \"my_field2\"," +
+                        "          \"on_failure\": [" +
+                        "            {" +
+                        "              \"pipeline\": {" +
+                        "                \"name\": \"my_pipeline\"" +
+                        "              }" +
+                        "            }" +
+                        "          ]" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }" +
+                        "}";
+        try {
+            getFilter(new ByteArrayInputStream(json.getBytes()), "my_pipeline", new ContextImpl(null, null));
+            Assert.fail("Pipeline cycle should have been detected");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("my_pipeline -> my_pipeline2 -> my_pipeline"));
+        }
+    }
+
+    @Test
+    public void testUnreachablePipelinesNotBuilt() throws Exception {
+
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"rename\": {" +
+                        "          \"field\": \"my_field1\"," +
+                        "          \"target_field\": \"my_field2\"," +
+                        "          \"on_failure\": [" +
+                        "            {" +
+                        "              \"pipeline\": {" +
+                        "                \"name\": \"my_pipeline2\"" +
+                        "              }" +
+                        "            }" +
+                        "          ]" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }," +
+                        "\"my_pipeline2\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"set\": {" +
+                        "          \"field\": \"my_field3\"," +
+                        "          \"value\": \"failed\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }," +
+                        "\"my_pipeline3\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"no_such_processor\": {}" +
+                        "      }" +
+                        "    ]" +
+                        "  }" +
+                        "}";
+        ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), "my_pipeline", new ContextImpl(null, null));
+        try {
+            Assert.assertTrue(ingestNodeFilter.isPipelineBuilt("my_pipeline"));
+            Assert.assertTrue(ingestNodeFilter.isPipelineBuilt("my_pipeline2"));
+            Assert.assertFalse(ingestNodeFilter.isPipelineBuilt("my_pipeline3"));
+            Assert.assertEquals("failed", runSingleEvent(ingestNodeFilter).getField("my_field3"));
+        } finally {
+            ingestNodeFilter.close();
+        }
+    }
+
+    @Test
+    public void testRemoveProcessor() throws Exception {
+
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"remove\": {" +
+                        "          \"field\": \"my_field1\"," +
+                        "          \"ignore_missing\": false" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }}";
+        ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), "my_pipeline", new ContextImpl(null, null));
+
+        Event e1 = new org.logstash.Event();
+        String value = "FOO";
+        e1.setField("my_field1", value);
+        e1.setField("my_field2", value);
+        Event e2 = assertSingleEvent(ingestNodeFilter.filter(Collections.singleton(e1), new TestFilterMatchListener()));
+        compareEventsExcludingFields(e1, e2, new String[]{"my_field1"});
+        Assert.assertNull(e2.getField("my_field1"));
+    }
+
+    @Test
+    public void testRenameProcessor() throws Exception {
+
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"rename\": {" +
+                        "          \"field\": \"my_field1\"," +
+                        "          \"target_field\": \"my_field2\"," +
+                        "          \"ignore_missing\": false" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }}";
+        ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), "my_pipeline", new ContextImpl(null, null));
+
+        Event e1 = new org.logstash.Event();
+        e1.setField("my_field1", "foo");
+        Event e2 = assertSingleEvent(ingestNodeFilter.filter(Collections.singleton(e1), new TestFilterMatchListener()));
+        compareEventsExcludingFields(e1, e2, new String[]{"my_field1", "my_field2"});
+        Assert.assertEquals(e1.getField("my_field1"), e2.getField("my_field2"));
+    }
+
+    @Test
+    public void testRenameProcessorWithFailure() throws Exception {
+
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"rename\": {" +
+                        "          \"field\": \"my_missing_field\"," +
+                        "          \"target_field\": \"my_field2\"," +
+                        "          \"ignore_missing\": false," +
+                        "          \"tag\": \"rename_tag\"," +
+                        "          \"on_failure\": [" +
+                        "            {" +
+                        "              \"set\": {" +
+                        "                \"field\": \"error_field1\"," +
+                        "                \"value\": \"{{ _ingest.on_failure_message }}\"" +
+                        "              }" +
+                        "            }," +
+                        "            {" +
+                        "              \"set\": {" +
+                        "                \"field\": \"error_field2\"," +
+                        "                \"value\": \"{{ _ingest.on_failure_processor_type }}\"" +
+                        "              }" +
+                        "            }," +
+                        "            {" +
+                        "              \"set\": {" +
+                        "                \"field\": \"error_field3\"," +
+                        "                \"value\": \"{{ _ingest.on_failure_processor_tag }}\"" +
+                        "              }" +
+                        "            }," +
+                        "            {" +
+                        "              \"set\": {" +
+                        "                \"field\": \"error_field4\"," +
+                        "                \"value\": \"{{ _ingest.timestamp }}\"" +
+                        "              }" +
+                        "            }" +
+                        "          ]" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }}";
+        ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), "my_pipeline", new ContextImpl(null, null));
+
+        String initialFieldName = "my_field1";
+        String initialFieldValue = "foo";
+        Event e1 = new org.logstash.Event();
+        e1.setField(initialFieldName, initialFieldValue);
         Instant executionTime = Instant.now();
         Event e2 = assertSingleEvent(ingestNodeFilter.filter(Collections.singleton(e1), new TestFilterMatchListener()));
         Assert.assertEquals(e2.getField(initialFieldName), initialFieldValue);
@@ -717,6 +1695,81 @@ public class ElasticsearchIngestNodeTest {
         Assert.assertEquals(10L, e2.getField("painlessValue"));
     }
 
+    @Test
+    public void testScriptCacheSharedAcrossFilters() throws Exception {
+
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "         \"script\": {" +
+                        "            \"source\": \"ctx.cachedValue = params.param_c + 1;\"," +
+                        "            \"params\": {" +
+                        "               \"param_c\": 10" +
+                        "             }" +
+                        "          }" +
+                        "       }" +
+                        "    ]" +
+                        "  }," +
+                        "  \"my_pipeline2\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "         \"script\": {" +
+                        "            \"source\": \"ctx.cachedValue = params.param_c + 1;\"," +
+                        "            \"params\": {" +
+                        "               \"param_c\": 20" +
+                        "             }" +
+                        "          }" +
+                        "       }" +
+                        "    ]" +
+                        "  }}";
+        long misses = CachingScriptService.stats().missCount();
+        long hits = CachingScriptService.stats().hitCount();
+        ElasticsearchIngestNode ingestNodeFilter1 = getFilter(
+                new ByteArrayInputStream(json.getBytes()), "my_pipeline", new ContextImpl(null, null));
+        ElasticsearchIngestNode ingestNodeFilter2 = getFilter(
+                new ByteArrayInputStream(json.getBytes()), "my_pipeline2", new ContextImpl(null, null));
+        Assert.assertTrue(CachingScriptService.stats().missCount() - misses <= 1);
+        Assert.assertTrue(CachingScriptService.stats().hitCount() - hits >= 3);
+
+        Event e1 = assertSingleEvent(ingestNodeFilter1.filter(
+                Collections.singleton(new org.logstash.Event()), new TestFilterMatchListener()));
+        Event e2 = assertSingleEvent(ingestNodeFilter2.filter(
+                Collections.singleton(new org.logstash.Event()), new TestFilterMatchListener()));
+        Assert.assertEquals(11L, e1.getField("cachedValue"));
+        Assert.assertEquals(21L, e2.getField("cachedValue"));
+    }
+
+    @Test
+    public void testManyDistinctScripts() throws Exception {
+        // more distinct scripts than Elasticsearch's default compilation rate limit of 75 every 5 minutes
+        ElasticsearchIngestNode ingestNodeFilter = getFilter(new ByteArrayInputStream(scriptPipeline(0, 100).getBytes()),
+                "my_pipeline", new ContextImpl(null, null));
+        Assert.assertEquals(99L, runSingleEvent(ingestNodeFilter).getField("scriptValue"));
+    }
+
+    @Test
+    public void testReloadManyDistinctScripts() throws Exception {
+        Path definitions = Files.createTempFile("pipelines", ".json");
+        Files.write(definitions, scriptPipeline(1000, 100).getBytes());
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.PIPELINE_DEFINITIONS.name(), definitions.toString());
+        settings.put(ElasticsearchIngestNode.RELOAD_INTERVAL.name(), "50ms");
+        ElasticsearchIngestNode ingestNodeFilter = new ElasticsearchIngestNode(
+                "test_id", new ConfigurationImpl(settings), new ContextImpl(null, null));
+        try {
+            Assert.assertEquals(1099L, runSingleEvent(ingestNodeFilter).getField("scriptValue"));
+
+            // every changed script misses the compiled script cache and is compiled by the shared script service
+            Files.write(definitions, scriptPipeline(2000, 100).getBytes());
+            awaitField(ingestNodeFilter, "scriptValue", 2099L);
+        } finally {
+            ingestNodeFilter.close();
+            Files.delete(definitions);
+        }
+    }
+
     @Test
     public void testSetProcessor() throws Exception {
 
@@ -932,6 +1985,67 @@ public class ElasticsearchIngestNodeTest {
         Assert.assertEquals("Other", e2.getField("[user_agent][device][name]"));
     }
 
+    @Test
+    public void testUserAgentCacheAndRegexFile() throws Exception {
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"user_agent\": {" +
+                        "          \"field\": \"agent\"," +
+                        "          \"ecs\": true" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"user_agent\": {" +
+                        "          \"field\": \"agent\"," +
+                        "          \"target_field\": \"custom\"," +
+                        "          \"regex_file\": \"my_regexes.yml\"," +
+                        "          \"ecs\": true" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }}";
+        Path regexDirectory = Files.createTempDirectory("regexes");
+        Path regexFile = regexDirectory.resolve("my_regexes.yml");
+        Files.write(regexFile, ("user_agent_parsers:\n" +
+                "  - regex: '(MyAgent)/(\\d+)\\.(\\d+)'\n" +
+                "os_parsers:\n" +
+                "  - regex: '(MyOS) (\\d+)'\n" +
+                "device_parsers:\n" +
+                "  - regex: '(MyDevice)'\n").getBytes());
+        try {
+            Map<String, Object> settings = new HashMap<>();
+            settings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), "my_pipeline");
+            settings.put(ElasticsearchIngestNode.USER_AGENT_REGEX_PATH.name(), regexDirectory.toString());
+            ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                    new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+
+            List<Event> events = new ArrayList<>();
+            for (int k = 0; k < 3; k++) {
+                Event e = new org.logstash.Event();
+                e.setField("agent", "MyAgent/1.2 (MyOS 3; MyDevice)");
+                events.add(e);
+            }
+            for (Event e : ingestNodeFilter.filter(events, new TestFilterMatchListener())) {
+                Assert.assertTrue(e.includes("user_agent"));
+                Assert.assertEquals("MyAgent", e.getField("[custom][name]"));
+                Assert.assertEquals("MyOS", e.getField("[custom][os][name]"));
+                Assert.assertEquals("MyDevice", e.getField("[custom][device][name]"));
+            }
+
+            // processors with different regex files do not share results
+            IngestMetrics metrics = ingestNodeFilter.getMetrics();
+            Assert.assertEquals(2, metrics.userAgentCache.misses.sum());
+            Assert.assertEquals(4, metrics.userAgentCache.hits.sum());
+            ingestNodeFilter.close();
+        } finally {
+            Files.delete(regexFile);
+            Files.delete(regexDirectory);
+        }
+    }
+
     @Test
     public void testMultipleProcessor() throws Exception {
 
@@ -979,6 +2093,316 @@ public class ElasticsearchIngestNodeTest {
         Assert.assertEquals(expected, e2.getField("my_field4"));
     }
 
+    @Test
+    public void testInPlace() throws Exception {
+
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"set\": {" +
+                        "          \"field\": \"my_field1\"," +
+                        "          \"value\": \"FOO BAR BAZ\"" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"rename\": {" +
+                        "          \"field\": \"my_field1\"," +
+                        "          \"target_field\": \"my_field2.my_field3\"," +
+                        "          \"ignore_missing\": false" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }}";
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), "my_pipeline");
+        settings.put(ElasticsearchIngestNode.IN_PLACE.name(), true);
+        ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+
+        Event e1 = new org.logstash.Event();
+        e1.setField("my_other_field", "myvalue");
+        Instant timestamp = e1.getEventTimestamp();
+        Event e2 = assertSingleEvent(ingestNodeFilter.filter(Collections.singleton(e1), new TestFilterMatchListener()));
+        Assert.assertSame(e1, e2);
+        Assert.assertEquals(timestamp, e2.getEventTimestamp());
+        Assert.assertEquals("myvalue", e2.getField("my_other_field"));
+        Assert.assertNull(e2.getField("my_field1"));
+        Assert.assertEquals("FOO BAR BAZ", e2.getField("[my_field2][my_field3]"));
+    }
+
+    @Test
+    public void testParallelism() throws Exception {
+
+        String json =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"uppercase\": {" +
+                        "          \"field\": \"my_field1\"," +
+                        "          \"target_field\": \"my_field2\"" +
+                        "        }" +
+                        "      }," +
+                        "      {" +
+                        "        \"drop\": {" +
+                        "          \"if\": \"ctx.my_field1.endsWith('7')\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }}";
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), "my_pipeline");
+        settings.put(ElasticsearchIngestNode.PARALLELISM.name(), 4L);
+        ElasticsearchIngestNode ingestNodeFilter = getFilter(
+                new ByteArrayInputStream(json.getBytes()), settings, new ContextImpl(null, null));
+
+        List<Event> events = new ArrayList<>();
+        for (int k = 0; k < 101; k++) {
+            Event e = new org.logstash.Event();
+            e.setField("my_field1", "value" + k);
+            events.add(e);
+        }
+        try {
+            List<Event> results = new ArrayList<>(ingestNodeFilter.filter(events, new TestFilterMatchListener()));
+            Assert.assertEquals(events.size(), results.size());
+            for (int k = 0; k < results.size(); k++) {
+                Event e = results.get(k);
+                Assert.assertEquals("value" + k, e.getField("my_field1"));
+                if (k % 10 == 7) {
+                    Assert.assertTrue(e.isCancelled());
+                } else {
+                    Assert.assertFalse(e.isCancelled());
+                    Assert.assertEquals("VALUE" + k, e.getField("my_field2"));
+                }
+            }
+        } finally {
+            ingestNodeFilter.close();
+        }
+    }
+
+    @Test
+    public void testReloadDefinitions() throws Exception {
+        String template =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"pipeline\": {" +
+                        "          \"name\": \"my_pipeline2\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }," +
+                        "\"my_pipeline2\" : {" +
+                        "    \"processors\": [" +
+                        "      {" +
+                        "        \"set\": {" +
+                        "          \"field\": \"my_field1\"," +
+                        "          \"value\": \"%s\"" +
+                        "        }" +
+                        "      }" +
+                        "    ]" +
+                        "  }" +
+                        "}";
+        Path definitions = Files.createTempFile("pipelines", ".json");
+        Files.write(definitions, String.format(template, "v1").getBytes());
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.PIPELINE_DEFINITIONS.name(), definitions.toString());
+        settings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), "my_pipeline");
+        settings.put(ElasticsearchIngestNode.RELOAD_INTERVAL.name(), "50ms");
+        ElasticsearchIngestNode ingestNodeFilter = new ElasticsearchIngestNode(
+                "test_id", new ConfigurationImpl(settings), new ContextImpl(null, null));
+        try {
+            Assert.assertEquals("v1", runSingleEvent(ingestNodeFilter).getField("my_field1"));
+
+            Files.write(definitions, String.format(template, "version2").getBytes());
+            awaitField(ingestNodeFilter, "my_field1", "version2");
+
+            // invalid definitions must not replace the current pipelines
+            Files.write(definitions, "{ \"my_pipeline\" : { \"processors\": [ { \"no_such_processor\": {} } ] } }"
+                    .getBytes());
+            Thread.sleep(500);
+            Assert.assertEquals("version2", runSingleEvent(ingestNodeFilter).getField("my_field1"));
+
+            Files.write(definitions, String.format(template, "v3").getBytes());
+            awaitField(ingestNodeFilter, "my_field1", "v3");
+        } finally {
+            ingestNodeFilter.close();
+            Files.delete(definitions);
+        }
+    }
+
+    @Test
+    public void testPipelineBuildRetried() throws Exception {
+        Map<String, IngestNodePipeline> definitions = Collections.singletonMap("my_pipeline",
+                new IngestNodePipeline("my_pipeline", Collections.emptyList()));
+        int[] attempts = new int[1];
+        PipelineSet.Builder builder = (name, definition, provider) -> {
+            if (attempts[0]++ == 0) {
+                throw new IllegalStateException("transient failure");
+            }
+            return new PipelineSet.Entry(new Pipeline(name, null, null, new CompoundProcessor()), null, null);
+        };
+
+        // failures are cached until the retry interval has passed
+        PipelineSet cached = new PipelineSet(definitions, definitions, "my_pipeline", Collections.emptyMap(),
+                builder, TimeUnit.HOURS.toNanos(1));
+        for (int k = 0; k < 2; k++) {
+            try {
+                cached.getPrimaryPipeline();
+                Assert.fail("Expected cached build failure");
+            } catch (IllegalStateException ex) {
+                Assert.assertEquals("transient failure", ex.getMessage());
+            }
+        }
+        Assert.assertEquals(1, attempts[0]);
+
+        attempts[0] = 0;
+        PipelineSet retried = new PipelineSet(definitions, definitions, "my_pipeline", Collections.emptyMap(),
+                builder, 0);
+        try {
+            retried.getPrimaryPipeline();
+            Assert.fail("Expected build failure");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        Assert.assertNotNull(retried.getPrimaryPipeline());
+        Assert.assertEquals(2, attempts[0]);
+    }
+
+    @Test
+    public void testDefinitionsDirectory() throws Exception {
+        Path directory = Files.createTempDirectory("pipelines");
+        Path json = directory.resolve("a.json");
+        Path yaml = directory.resolve("b.yml");
+        Files.write(json, ("{ \"my_pipeline\" : {" +
+                "    \"processors\": [ { \"pipeline\": { \"name\": \"my_pipeline2\" } } ] }," +
+                "\"broken_pipeline\" : { \"processors\": [ { \"no_such_processor\": {} } ] } }").getBytes());
+        Files.write(yaml, ("my_pipeline2:\n" +
+                "  description: set from YAML\n" +
+                "  processors:\n" +
+                "    - set:\n" +
+                "        field: my_field1\n" +
+                "        value: from_yaml\n").getBytes());
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.PIPELINE_DEFINITIONS.name(), directory.toString());
+        settings.put(ElasticsearchIngestNode.PRIMARY_PIPELINE.name(), "my_pipeline");
+        try {
+            // the unreferenced broken pipeline is never built
+            ElasticsearchIngestNode ingestNodeFilter = new ElasticsearchIngestNode(
+                    "test_id", new ConfigurationImpl(settings), new ContextImpl(null, null));
+            try {
+                Assert.assertEquals("from_yaml", runSingleEvent(ingestNodeFilter).getField("my_field1"));
+                try {
+                    ingestNodeFilter.getPipelineByName("broken_pipeline");
+                    Assert.fail("Expected broken pipeline to fail when built");
+                } catch (IllegalStateException ex) {
+                    // expected
+                }
+            } finally {
+                ingestNodeFilter.close();
+            }
+
+            Files.write(directory.resolve("c.yaml"), "my_pipeline2:\n  processors: []\n".getBytes());
+            try {
+                new ElasticsearchIngestNode("test_id", new ConfigurationImpl(settings), new ContextImpl(null, null));
+                Assert.fail("Expected pipeline defined in two files to be rejected");
+            } catch (IllegalStateException ex) {
+                Assert.assertTrue(ex.getMessage().contains("my_pipeline2"));
+            }
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testMetricsAcrossReload() throws Exception {
+        String v1 =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      { \"set\": { \"field\": \"my_field1\", \"value\": \"v1\" } }," +
+                        "      { \"pipeline\": { \"name\": \"my_pipeline2\" } }" +
+                        "    ]" +
+                        "  }," +
+                        "\"my_pipeline2\" : {" +
+                        "    \"processors\": [ { \"set\": { \"field\": \"my_field2\", \"value\": \"v1\" } } ]" +
+                        "  }" +
+                        "}";
+        String v2 =
+
+                "{ \"my_pipeline\" : {" +
+                        "    \"processors\": [" +
+                        "      { \"set\": { \"field\": \"my_field1\", \"value\": \"v2\" } }," +
+                        "      { \"set\": { \"field\": \"my_field2\", \"value\": \"v2\" } }" +
+                        "    ]" +
+                        "  }" +
+                        "}";
+        Path definitions = Files.createTempFile("pipelines", ".json");
+        Files.write(definitions, v1.getBytes());
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(ElasticsearchIngestNode.PIPELINE_DEFINITIONS.name(), definitions.toString());
+        settings.put(ElasticsearchIngestNode.RELOAD_INTERVAL.name(), "50ms");
+        ElasticsearchIngestNode ingestNodeFilter = new ElasticsearchIngestNode(
+                "test_id", new ConfigurationImpl(settings), new ContextImpl(null, null));
+        try {
+            runSingleEvent(ingestNodeFilter);
+            IngestMetrics metrics = ingestNodeFilter.getMetrics();
+            IngestMetrics.PipelineMetrics primary = metrics.getPipelineMetrics("my_pipeline");
+            Assert.assertNotNull(primary.getProcessor("set_1"));
+            Assert.assertNotNull(primary.getProcessor("pipeline_2"));
+            Assert.assertNotNull(metrics.getPipelineMetrics("my_pipeline2").getProcessor("set_1"));
+
+            // untagged processors are named by their position, so unchanged ones keep their metrics, and the
+            // metrics of replaced processors and removed pipelines are dropped
+            Files.write(definitions, v2.getBytes());
+            awaitField(ingestNodeFilter, "my_field1", "v2");
+            Assert.assertFalse(metrics.getPipelineIds().contains("my_pipeline2"));
+            Assert.assertTrue(primary.getProcessor("set_1").invocations.sum() > 1);
+            Assert.assertNotNull(primary.getProcessor("set_2"));
+            Assert.assertNull(primary.getProcessor("pipeline_2"));
+        } finally {
+            ingestNodeFilter.close();
+            Files.delete(definitions);
+        }
+    }
+
+    /**
+     * Returns a pipeline named my_pipeline whose script processors each compile a distinct script, the last of which
+     * sets the field scriptValue to {@code from + count - 1}.
+     */
+    private static String scriptPipeline(int from, int count) {
+        StringBuilder processors = new StringBuilder();
+        for (int k = from; k < from + count; k++) {
+            processors.append(k == from ? "" : ",")
+                    .append(String.format("{ \"script\": { \"source\": \"ctx.scriptValue = %d;\" } }", k));
+        }
+        return "{ \"my_pipeline\" : { \"processors\": [" + processors + "] } }";
+    }
+
+    private static Event runSingleEvent(ElasticsearchIngestNode ingestNodeFilter) {
+        return assertSingleEvent(ingestNodeFilter.filter(
+                Collections.singleton(new org.logstash.Event()), new TestFilterMatchListener()));
+    }
+
+    private static void awaitField(ElasticsearchIngestNode ingestNodeFilter, String field, Object expected)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        Object value = runSingleEvent(ingestNodeFilter).getField(field);
+        while (!expected.equals(value) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            value = runSingleEvent(ingestNodeFilter).getField(field);
+        }
+        Assert.assertEquals(expected, value);
+    }
+
     private static Event assertSingleEvent(Collection<Event> events) {
         Assert.assertEquals(1, events.size());
         return events.iterator().next();
@@ -1014,4 +2438,3 @@ class TestFilterMatchListener implements FilterMatchListener {
 
     }
 }
-
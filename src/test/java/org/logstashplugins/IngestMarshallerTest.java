@@ -1,5 +1,6 @@
 package org.logstashplugins;
 
+import org.elasticsearch.ingest.IngestDocument;
 import org.joda.time.DateTime;
 import org.jruby.Ruby;
 import org.jruby.RubyBignum;
@@ -15,9 +16,14 @@ import org.logstash.ext.JrubyTimestampExtLibrary;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 
 public class IngestMarshallerTest {
@@ -33,6 +39,155 @@ public class IngestMarshallerTest {
         }
     }
 
+    @Test
+    public void testLazyRoundtrip() {
+        Event original = getEvent();
+        Event expected = original.clone();
+        IngestDocument document = IngestMarshaller.toLazyDocument(original);
+        Event roundtrip = IngestMarshaller.writeBack(document);
+
+        Assert.assertSame(original, roundtrip);
+        Assert.assertEquals(expected.getEventTimestamp(), roundtrip.getEventTimestamp());
+        for (String key : expected.toMap().keySet()) {
+            Assert.assertEquals(expected.getField(key), roundtrip.getField(key));
+        }
+    }
+
+    @Test
+    public void testLazyDocumentWrites() {
+        Event original = getEvent();
+        IngestDocument document = IngestMarshaller.toLazyDocument(original);
+        EventWrapper wrapper = (EventWrapper)document.getSourceAndMetadata();
+
+        document.setFieldValue("string_field", "bar");
+        document.removeField("int");
+        document.getFieldValue("map.foo", Object.class);
+        document.getFieldValue("list_of_strings.1", Object.class);
+        Assert.assertTrue(wrapper.getDirtyFields().isEmpty());
+        Assert.assertEquals("bar", original.getField("string_field"));
+        Assert.assertNull(original.getField("int"));
+
+        document.setFieldValue("map.qux", "quux");
+        document.setFieldValue("new_map.foo", "bar");
+        document.appendFieldValue("list_of_strings", "qux");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("map", "new_map", "list_of_strings")),
+                wrapper.getDirtyFields());
+        IngestMarshaller.writeBack(document);
+        Assert.assertEquals("quux", original.getField("[map][qux]"));
+        Assert.assertEquals(31L, original.getField("[map][foo]"));
+        Assert.assertEquals("bar", original.getField("[new_map][foo]"));
+        Assert.assertEquals(Arrays.asList("foo", "bar", "baz", "qux"), original.getField("list_of_strings"));
+    }
+
+    @Test
+    public void testLazyDocumentRename() {
+        Event original = getEvent();
+        IngestDocument document = IngestMarshaller.toLazyDocument(original);
+        EventWrapper wrapper = (EventWrapper)document.getSourceAndMetadata();
+
+        // as the rename processor does
+        Object value = document.getFieldValue("map", Object.class);
+        document.removeField("map");
+        document.setFieldValue("renamed_map", value);
+        document.setFieldValue("renamed_map.qux", "quux");
+        Assert.assertEquals(Collections.singleton("renamed_map"), wrapper.getDirtyFields());
+        IngestMarshaller.writeBack(document);
+        Assert.assertFalse(original.includes("map"));
+        Assert.assertEquals(31L, original.getField("[renamed_map][foo]"));
+        Assert.assertEquals("quux", original.getField("[renamed_map][qux]"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLazyDocumentProfiled() {
+        Event original = getEvent();
+        IngestDocument document = IngestMarshaller.toLazyDocument(original.clone());
+        IngestDocument profiledDocument = IngestMarshaller.toLazyDocument(original.clone());
+        PipelineProfiler profiler = new PipelineProfiler(1, null, null);
+
+        profiler.start("my_pipeline", profiledDocument);
+        for (IngestDocument d : Arrays.asList(document, profiledDocument)) {
+            d.getFieldValue("map.foo", Object.class);
+            d.getFieldValue("list_of_strings.1", Object.class);
+            d.setFieldValue("string_field", "bar");
+        }
+        Map<String, Object> profile = profiler.finish(profiledDocument, null);
+
+        // snapshots of the document do not mark its maps and lists as changed
+        Assert.assertEquals(((EventWrapper)document.getSourceAndMetadata()).getDirtyFields(),
+                ((EventWrapper)profiledDocument.getSourceAndMetadata()).getDirtyFields());
+        Assert.assertTrue(((EventWrapper)profiledDocument.getSourceAndMetadata()).getDirtyFields().isEmpty());
+        Assert.assertEquals("bar", ((Map<String, Object>)profile.get("after")).get("string_field"));
+    }
+
+    @Test
+    public void testLazyMetadata() {
+        Event original = getEvent();
+        original.setField("[@metadata][foo]", "bar");
+        original.setField("[@metadata][baz]", "qux");
+        Instant timestamp = original.getEventTimestamp();
+        IngestDocument document = IngestMarshaller.toLazyDocument(original);
+        IngestMetadata metadata = (IngestMetadata)document.getIngestMetadata();
+
+        Assert.assertEquals("bar", document.getFieldValue("_ingest.foo", String.class));
+        document.setFieldValue("_ingest.new_field", "value");
+        document.removeField("_ingest.baz");
+        IngestMarshaller.writeBack(document);
+
+        Assert.assertFalse(metadata.isTimestampMaterialized());
+        Assert.assertEquals(timestamp, original.getEventTimestamp());
+        // ingest metadata is written to top-level fields as when the event is copied
+        Assert.assertTrue(original.getMetadata().isEmpty());
+        Assert.assertEquals("bar", original.getField("foo"));
+        Assert.assertEquals("value", original.getField("new_field"));
+        Assert.assertNull(original.getField("baz"));
+    }
+
+    @Test
+    public void testLazyMetadataViews() {
+        Event original = getEvent();
+        original.setField("[@metadata][foo]", "bar");
+        IngestMetadata metadata = (IngestMetadata)IngestMarshaller.toLazyDocument(original).getIngestMetadata();
+
+        metadata.put("null_field", null);
+        Assert.assertTrue(metadata.containsKey("null_field"));
+        Assert.assertTrue(metadata.containsKey("foo"));
+        Assert.assertTrue(metadata.containsKey(IngestMarshaller.INGEST_TIMESTAMP));
+        metadata.remove("foo");
+        metadata.remove(IngestMarshaller.INGEST_TIMESTAMP);
+        Assert.assertFalse(metadata.containsKey("foo"));
+        Assert.assertFalse(metadata.containsKey(IngestMarshaller.INGEST_TIMESTAMP));
+
+        assertUnsupported(metadata::clear);
+        assertUnsupported(() -> metadata.keySet().remove("null_field"));
+        assertUnsupported(() -> metadata.entrySet().iterator().next().setValue("value"));
+        Assert.assertTrue(metadata.containsKey("null_field"));
+    }
+
+    @Test
+    public void testTimestampWrittenOnlyWhenChanged() {
+        Event original = getEvent();
+        IngestDocument document = IngestMarshaller.toLazyDocument(original.clone());
+        Event unchanged = IngestMarshaller.writeBack(document);
+        Assert.assertFalse(((IngestMetadata)document.getIngestMetadata()).isTimestampMaterialized());
+        Assert.assertEquals(original.getEventTimestamp(), unchanged.getEventTimestamp());
+
+        ZonedDateTime newTimestamp = ZonedDateTime.of(2019, 1, 2, 3, 4, 5, 0, ZoneOffset.UTC);
+        document = IngestMarshaller.toLazyDocument(original.clone());
+        document.setFieldValue("_ingest.timestamp", newTimestamp);
+        Event changed = IngestMarshaller.writeBack(document);
+        Assert.assertEquals(newTimestamp.toInstant(), changed.getEventTimestamp());
+    }
+
+    private static void assertUnsupported(Runnable r) {
+        try {
+            r.run();
+            Assert.fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
     private static org.logstash.Event getEvent() {
         Event original = new org.logstash.Event();
         Ruby ruby = Ruby.getGlobalRuntime();
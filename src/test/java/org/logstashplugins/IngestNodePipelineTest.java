@@ -1,11 +1,18 @@
 package org.logstashplugins;
 
+import com.fasterxml.jackson.core.JsonParseException;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 public class IngestNodePipelineTest {
 
@@ -35,4 +42,92 @@ public class IngestNodePipelineTest {
         }
 
     }
+
+    @Test
+    public void testInlinePipelines() throws IOException {
+        String json =
+                "{ \"outer\": { \"processors\": [" +
+                        "    { \"set\": { \"field\": \"a\", \"value\": \"b\" } }," +
+                        "    { \"pipeline\": { \"name\": \"middle\", \"tag\": \"call_middle\" } }," +
+                        "    { \"pipeline\": { \"name\": \"inner\", \"if\": \"ctx.a == 'c'\" } }" +
+                        "  ] }," +
+                        "  \"middle\": { \"processors\": [" +
+                        "    { \"pipeline\": { \"name\": \"inner\" } }," +
+                        "    { \"lowercase\": { \"field\": \"a\" } }" +
+                        "  ] }," +
+                        "  \"inner\": { \"processors\": [" +
+                        "    { \"uppercase\": { \"field\": \"a\" } }" +
+                        "  ] }" +
+                        "}";
+        Map<String, IngestNodePipeline> pipelines = new LinkedHashMap<>();
+        for (IngestNodePipeline p : IngestNodePipeline.createFrom(new ByteArrayInputStream(json.getBytes()))) {
+            pipelines.put(p.getName(), p);
+        }
+
+        Map<String, IngestNodePipeline> inlined = PipelineInliner.inline(pipelines);
+
+        Assert.assertEquals(Arrays.asList("set", "uppercase", "lowercase", "pipeline"),
+                processorNames(inlined.get("outer")));
+        Assert.assertEquals(Arrays.asList("uppercase", "lowercase"), processorNames(inlined.get("middle")));
+        Assert.assertSame(pipelines.get("inner"), inlined.get("inner"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPipelineConfig() throws IOException {
+        String json =
+                "{ \"my_pipeline\": {" +
+                        "    \"description\": { \"ignored\": [1, 2] }," +
+                        "    \"processors\": [" +
+                        "      { \"set\": { \"field\": \"a\", \"value\": 42 } }," +
+                        "      { \"convert\": { \"field\": \"b\", \"type\": \"float\", \"ignore_missing\": true }," +
+                        "        \"split\": { \"field\": \"c\", \"separator\": \",\", \"tag\": null } }," +
+                        "      { \"append\": { \"field\": \"d\", \"value\": [1.5, \"x\", { \"y\": false }] } }" +
+                        "    ]" +
+                        "  }" +
+                        "}";
+        List<IngestNodePipeline> pipelines = IngestNodePipeline.createFrom(new ByteArrayInputStream(json.getBytes()));
+        Assert.assertEquals(1, pipelines.size());
+        IngestNodePipeline pipeline = pipelines.get(0);
+        Assert.assertEquals(Arrays.asList("set", "convert", "split", "append"), processorNames(pipeline));
+
+        Map<String, Object> config = pipeline.toIngestNodeFormat();
+        List<Map<String, Object>> processors = (List<Map<String, Object>>)config.get("processors");
+        Assert.assertEquals(4, processors.size());
+        Map<String, Object> set = (Map<String, Object>)processors.get(0).get("set");
+        Assert.assertEquals(42, set.get("value"));
+        Map<String, Object> convert = (Map<String, Object>)processors.get(1).get("convert");
+        Assert.assertEquals(true, convert.get("ignore_missing"));
+        Map<String, Object> split = (Map<String, Object>)processors.get(2).get("split");
+        Assert.assertTrue(split.containsKey("tag"));
+        Assert.assertNull(split.get("tag"));
+        Map<String, Object> append = (Map<String, Object>)processors.get(3).get("append");
+        Assert.assertEquals(Arrays.asList(1.5, "x", Collections.singletonMap("y", false)), append.get("value"));
+
+        // the configuration is read-only and building a pipeline, which consumes its configuration, uses a copy
+        try {
+            set.clear();
+            Assert.fail("The configuration should be read-only");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+        List<Map<String, Object>> copies = (List<Map<String, Object>>)pipeline.newPipelineConfig().get("processors");
+        ((Map<String, Object>)copies.get(0).get("set")).clear();
+        ((List<Object>)((Map<String, Object>)copies.get(3).get("append")).get("value")).clear();
+        Assert.assertEquals(42, set.get("value"));
+        Assert.assertEquals(pipeline, IngestNodePipeline.createFrom(new ByteArrayInputStream(json.getBytes())).get(0));
+
+        try {
+            IngestNodePipeline.createFrom(new ByteArrayInputStream("{ \"p\": { \"description\": \"x\" } }".getBytes()));
+            Assert.fail("Pipelines without processors should be rejected");
+        } catch (JsonParseException ex) {
+            Assert.assertTrue(ex.getMessage(), ex.getMessage().startsWith("Pipeline 'p' has no 'processors'"));
+        }
+    }
+
+    private static List<String> processorNames(IngestNodePipeline pipeline) {
+        return pipeline.getProcessors().stream()
+                .map(IngestNodePipeline.IngestProcessor::getName)
+                .collect(Collectors.toList());
+    }
 }